@@ -0,0 +1,179 @@
+package io.github.mthli.knife;
+
+import android.test.AndroidTestCase;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Random;
+
+/**
+ * Whatever KnifeBinaryCodec encodes must decode to the same document, and what it did not encode
+ * must be refused with an IOException rather than decoded into spans out of the text.
+ */
+public class KnifeBinaryCodecTest extends AndroidTestCase {
+    private static final String[] URLS = {"https://example.com", "https://example.com/\u00fc?q=a&b", "", null};
+
+    public void testRoundTrip() throws IOException {
+        for (int seed = 0; seed < 200; seed++) {
+            KnifeDocument document = randomDocument(new Random(seed));
+            assertDocument("seed " + seed, document, decode(encode(document)));
+        }
+    }
+
+    public void testEmpty() throws IOException {
+        KnifeDocument document = new KnifeDocument.Builder("").build();
+        assertDocument("empty", document, decode(encode(document)));
+    }
+
+    public void testTruncated() throws IOException {
+        byte[] bytes = encode(randomDocument(new Random(1)));
+        for (int length = 0; length < bytes.length; length++) {
+            byte[] truncated = new byte[length];
+            System.arraycopy(bytes, 0, truncated, 0, length);
+            assertRefused("length " + length, truncated);
+        }
+    }
+
+    public void testBadMagic() throws IOException {
+        byte[] bytes = encode(randomDocument(new Random(2)));
+        for (int i = 0; i < 3; i++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[i] ^= 0x20;
+            assertRefused("byte " + i, corrupt);
+        }
+
+        assertRefused("html", "<p>hello</p>".getBytes("UTF-8"));
+    }
+
+    public void testBadVersion() throws IOException {
+        byte[] bytes = encode(randomDocument(new Random(3)));
+        bytes[3] = 2;
+        assertRefused("version", bytes);
+    }
+
+    public void testBadStringIndex() throws IOException {
+        // One string, a link naming string 1 and one naming string -2
+        assertRefused("index 1", document(1, KnifeDocument.SPAN_LINK, 1));
+        assertRefused("index -2", document(1, KnifeDocument.SPAN_IMAGE, -2));
+
+        // The same layout decodes with an index in range, or -1 for no URL
+        KnifeDocument document = decode(document(1, KnifeDocument.SPAN_LINK, 0));
+        assertEquals("https://example.com", document.getSpanString(0));
+        document = decode(document(1, KnifeDocument.SPAN_LINK, -1));
+        assertNull(document.getSpanString(0));
+    }
+
+    public void testSpanOutOfText() throws IOException {
+        byte[] bytes = document(0, KnifeDocument.SPAN_UNDERLINE, 0);
+
+        // Span length, right after the start delta
+        bytes[bytes.length - 2] = 10;
+        assertRefused("length", bytes);
+    }
+
+    private static KnifeDocument randomDocument(Random random) {
+        StringBuilder text = new StringBuilder();
+        int length = random.nextInt(200);
+        for (int i = 0; i < length; i++) {
+            switch (random.nextInt(6)) {
+                case 0:
+                    text.append('\n');
+                    break;
+                case 1:
+                    text.append((char) (0x80 + random.nextInt(0x780)));
+                    break;
+                case 2:
+                    text.append((char) (0x800 + random.nextInt(0xD000)));
+                    break;
+                case 3:
+                    text.appendCodePoint(0x10000 + random.nextInt(0x100000));
+                    break;
+                case 4:
+                    // Lone surrogates, an Editable may hold half of a pair
+                    text.append((char) (0xD800 + random.nextInt(0x800)));
+                    break;
+                default:
+                    text.append((char) ('a' + random.nextInt(26)));
+                    break;
+            }
+        }
+
+        KnifeDocument.Builder builder = new KnifeDocument.Builder(text);
+        int spans = random.nextInt(40);
+        for (int i = 0; i < spans; i++) {
+            int start = random.nextInt(text.length() + 1);
+            int end = start + random.nextInt(text.length() - start + 1);
+            int type = 1 + random.nextInt(KnifeDocument.SPAN_QUOTE);
+            if (type == KnifeDocument.SPAN_LINK || type == KnifeDocument.SPAN_IMAGE) {
+                builder.addSpan(type, start, end, URLS[random.nextInt(URLS.length)]);
+            } else {
+                builder.addSpan(type, start, end, random.nextInt());
+            }
+        }
+
+        return builder.build();
+    }
+
+    // Laid out by hand: text "hello", stringCount times the string "https://example.com", and one
+    // span of the type over "ell" with the raw value
+    private static byte[] document(int stringCount, int type, int value) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.write(new byte[]{'K', 'N', 'F', 1});
+        writeString(out, "hello");
+        out.write(stringCount);
+        for (int i = 0; i < stringCount; i++) {
+            writeString(out, "https://example.com");
+        }
+
+        out.write(1);
+        out.write(type);
+        out.write(1 << 1);
+        out.write(3);
+        out.write(value < 0 ? (-value << 1) - 1 : value << 1);
+        return out.toByteArray();
+    }
+
+    private static void writeString(ByteArrayOutputStream out, String string) throws IOException {
+        byte[] bytes = string.getBytes("UTF-8");
+        out.write(bytes.length);
+        out.write(bytes);
+    }
+
+    private static byte[] encode(KnifeDocument document) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        KnifeBinaryCodec.encode(document, out);
+        return out.toByteArray();
+    }
+
+    private static KnifeDocument decode(byte[] bytes) throws IOException {
+        return KnifeBinaryCodec.decode(new ByteArrayInputStream(bytes));
+    }
+
+    private static void assertRefused(String message, byte[] bytes) {
+        try {
+            decode(bytes);
+            fail(message + " decoded");
+        } catch (IOException e) {
+            // Refused as it should be
+        }
+    }
+
+    private static void assertDocument(String message, KnifeDocument expected, KnifeDocument actual) {
+        assertEquals(message, expected.getText().toString(), actual.getText().toString());
+        assertEquals(message, expected.getSpanCount(), actual.getSpanCount());
+        for (int i = 0; i < expected.getSpanCount(); i++) {
+            String span = message + " span " + i;
+            assertEquals(span, expected.getSpanType(i), actual.getSpanType(i));
+            assertEquals(span, expected.getSpanStart(i), actual.getSpanStart(i));
+            assertEquals(span, expected.getSpanEnd(i), actual.getSpanEnd(i));
+
+            int type = expected.getSpanType(i);
+            if (type == KnifeDocument.SPAN_LINK || type == KnifeDocument.SPAN_IMAGE) {
+                assertEquals(span, expected.getSpanString(i), actual.getSpanString(i));
+            } else {
+                assertEquals(span, expected.getSpanValue(i), actual.getSpanValue(i));
+            }
+        }
+    }
+}
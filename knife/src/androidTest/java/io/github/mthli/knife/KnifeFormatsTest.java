@@ -0,0 +1,169 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.test.AndroidTestCase;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * KnifeFormats.covers() must always answer what a scan of the spans over every char answers,
+ * whatever edits and span changes came in between and whether update() ran or not.
+ */
+public class KnifeFormatsTest extends AndroidTestCase {
+    private static final FormatHandler<StyleSpan> BOLD = new FormatHandler<StyleSpan>(StyleSpan.class) {
+        @Override
+        protected StyleSpan copy(StyleSpan span) {
+            return new StyleSpan(Typeface.BOLD);
+        }
+
+        @Override
+        protected boolean matches(StyleSpan span) {
+            return span.getStyle() == Typeface.BOLD;
+        }
+    };
+
+    private static final FormatHandler<UnderlineSpan> UNDERLINE = new FormatHandler<UnderlineSpan>(UnderlineSpan.class) {
+        @Override
+        protected UnderlineSpan copy(UnderlineSpan span) {
+            return new UnderlineSpan();
+        }
+    };
+
+    private static final List<FormatHandler<?>> FORMATS = Arrays.<FormatHandler<?>>asList(BOLD, UNDERLINE);
+
+    private static final int[] FLAGS = {
+            Spanned.SPAN_EXCLUSIVE_EXCLUSIVE,
+            Spanned.SPAN_INCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_EXCLUSIVE_INCLUSIVE,
+            Spanned.SPAN_INCLUSIVE_EXCLUSIVE
+    };
+
+    public void testEdits() {
+        run(new Random(1), true, false);
+    }
+
+    public void testSpanChanges() {
+        run(new Random(2), false, true);
+    }
+
+    public void testEverything() {
+        for (int seed = 0; seed < 300; seed++) {
+            run(new Random(seed), true, true);
+        }
+    }
+
+    private static void run(Random random, boolean edits, boolean spans) {
+        SpannableStringBuilder text = new SpannableStringBuilder("hello world, this is text\nmore");
+        KnifeFormats formats = new KnifeFormats();
+        formats.attach(text);
+
+        List<Object> added = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            addSpan(random, text, added);
+        }
+
+        // Last edit, to tell the span moves the index can't tell from the edit moving them
+        int editEnd = -1;
+        int editDelta = 0;
+        boolean queried = true;
+
+        for (int i = 0; i < 300; i++) {
+            int start = random.nextInt(text.length() + 1);
+            int end = start + random.nextInt(Math.min(8, text.length() - start) + 1);
+            int kind = random.nextInt(4);
+            if (kind == 0 && edits || !spans) {
+                String insert = random.nextBoolean() ? "" : "abc\ndefgh".substring(random.nextInt(9));
+                text.replace(start, end, insert);
+                editEnd = start + insert.length();
+                editDelta = insert.length() - (end - start);
+                queried = false;
+            } else if (kind == 1) {
+                addSpan(random, text, added);
+            } else if (kind == 2 && !added.isEmpty()) {
+                text.removeSpan(added.remove(random.nextInt(added.size())));
+            } else if (kind == 3 && !added.isEmpty() && start < end) {
+                Object span = added.get(random.nextInt(added.size()));
+                int spanStart = text.getSpanStart(span);
+                int spanEnd = text.getSpanEnd(span);
+
+                // Right after an edit a span moved by exactly as much looks moved by the edit, see
+                // KnifeFormats.editing
+                boolean shifted = spanStart == (start > editEnd ? start - editDelta : start)
+                        && spanEnd == (end > editEnd ? end - editDelta : end);
+                if (spanStart >= 0 && (queried || !shifted)) {
+                    text.setSpan(span, start, end, text.getSpanFlags(span));
+                }
+            }
+
+            if (random.nextInt(3) == 0) {
+                formats.update(text, FORMATS);
+                queried = true;
+            }
+
+            // Let a few changes pile up between the queries now and then
+            int queries = random.nextInt(4);
+            queried |= queries > 0;
+            for (int q = 0; q < queries; q++) {
+                int queryStart = random.nextInt(text.length() + 1);
+                int queryEnd = queryStart + random.nextInt(text.length() - queryStart + 1);
+                FormatHandler<?> format = random.nextBoolean() ? BOLD : UNDERLINE;
+                assertEquals("step " + i + " " + queryStart + ".." + queryEnd,
+                        scan(text, format, queryStart, queryEnd), formats.covers(text, format, queryStart, queryEnd));
+            }
+        }
+    }
+
+    private static void addSpan(Random random, SpannableStringBuilder text, List<Object> added) {
+        if (text.length() == 0) {
+            return;
+        }
+
+        int start = random.nextInt(text.length());
+        int end = start + 1 + random.nextInt(Math.min(8, text.length() - start));
+        Object span;
+        switch (random.nextInt(3)) {
+            case 0:
+                span = new UnderlineSpan();
+                break;
+            case 1:
+                span = new StyleSpan(Typeface.ITALIC);
+                break;
+            default:
+                span = new StyleSpan(Typeface.BOLD);
+                break;
+        }
+
+        text.setSpan(span, start, end, FLAGS[random.nextInt(FLAGS.length)]);
+        added.add(span);
+    }
+
+    // Char by char, as KnifeText.contains() did before the index
+    private static <T> boolean scan(Spanned text, FormatHandler<T> format, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+
+        for (int i = start; i < end; i++) {
+            boolean covered = false;
+            for (T span : text.getSpans(i, i + 1, format.getType())) {
+                if (text.getSpanStart(span) <= i && i < text.getSpanEnd(span) && format.matches(span)) {
+                    covered = true;
+                    break;
+                }
+            }
+
+            if (!covered) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
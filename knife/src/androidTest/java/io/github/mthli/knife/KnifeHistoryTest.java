@@ -0,0 +1,645 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.test.AndroidTestCase;
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpannableString;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.CharacterStyle;
+import android.text.style.ImageSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import io.github.mthli.knife.spans.ImageCustomSpan;
+import io.github.mthli.knife.type.MediaImageType;
+
+/**
+ * Every undo and redo must bring back exactly the text and spans there were before and after the
+ * step, whatever edits, formatting and undo or redo came in between, spilled or not.
+ *
+ * KnifeText takes the grouping and the byte budget from XML attributes only, the tests for those
+ * drive a KnifeHistory on a plain SpannableStringBuilder the same way KnifeText does.
+ */
+public class KnifeHistoryTest extends AndroidTestCase {
+    // No word chars and no plain whitespace, so no edit continues the one before it
+    private static final String[] INSERTS = {"\n", "x\ny", "<&>", ", ", "1.2"};
+
+    public void testKnifeText() {
+        for (int seed = 0; seed < 5; seed++) {
+            KnifeText knife = new KnifeText(getContext());
+            knife.setText("one two three\nfour five six\nseven eight nine");
+            knife.clearHistory();
+            run(new Random(seed), new KnifeTextEditor(knife), 100, 300);
+        }
+    }
+
+    public void testKnifeTextSaveRestore() throws Exception {
+        File file = new File(getContext().getCacheDir(), "knife-text-history");
+        KnifeText knife = new KnifeText(getContext());
+        knife.setText("one two three");
+        knife.clearHistory();
+
+        Random random = new Random(1);
+        List<String> snapshots = new ArrayList<>();
+        KnifeTextEditor editor = new KnifeTextEditor(knife);
+        snapshots.add(snapshot(knife.getEditableText()));
+        for (int i = 0; i < 20; i++) {
+            editor.change(random);
+            snapshots.add(snapshot(knife.getEditableText()));
+        }
+
+        knife.saveHistory(file);
+
+        KnifeText restored = new KnifeText(getContext());
+        restored.setText(knife.getEditableText());
+        restored.clearHistory();
+        assertTrue(restored.restoreHistory(file));
+        assertUndoRedo(new KnifeTextEditor(restored), snapshots);
+
+        // Saved for another text
+        KnifeText other = new KnifeText(getContext());
+        other.setText("one two three four");
+        other.clearHistory();
+        assertFalse(other.restoreHistory(file));
+        assertFalse(other.undoValid());
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    public void testEdits() {
+        run(new Random(1), new Driver(new KnifeHistory(1000, 0, false)), 1000, 500);
+    }
+
+    public void testEverything() {
+        for (int seed = 0; seed < 20; seed++) {
+            run(new Random(seed), new Driver(new KnifeHistory(50, 0, true)), 50, 300);
+        }
+    }
+
+    // Nearly every step goes to the log and is read back, spans matched to the live ones
+    public void testSpilledEverything() {
+        File directory = new File(getContext().getCacheDir(), "knife-history-test");
+        delete(directory);
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+
+        for (int seed = 0; seed < 20; seed++) {
+            KnifeHistory history = new KnifeHistory(50, 0, true);
+            history.spill(directory, 500, new KnifeSpanFactory(null));
+            run(new Random(seed), new Driver(history), 50, 300);
+            history.clear();
+        }
+
+        delete(directory);
+    }
+
+    public void testGroupWords() {
+        Driver driver = new Driver(new KnifeHistory(100, 0, true));
+        type(driver, "hello");
+        type(driver, " ");
+        type(driver, "world");
+        type(driver, ".");
+        assertEquals("hello world.", driver.text.toString());
+
+        assertTrue(driver.undo());
+        assertEquals("hello world", driver.text.toString());
+        assertTrue(driver.undo());
+        assertEquals("hello ", driver.text.toString());
+
+        // The space typed after a word goes with it
+        assertTrue(driver.undo());
+        assertEquals("", driver.text.toString());
+        assertFalse(driver.undo());
+
+        while (driver.redo()) {
+            // Back to "hello world."
+        }
+
+        // Deleting back through a word is one step, what is around it are others
+        for (int i = 0; i < 7; i++) {
+            driver.text.delete(driver.text.length() - 1, driver.text.length());
+        }
+
+        assertEquals("hello", driver.text.toString());
+        assertTrue(driver.undo());
+        assertEquals("hello ", driver.text.toString());
+        assertTrue(driver.undo());
+        assertEquals("hello world", driver.text.toString());
+        assertTrue(driver.undo());
+        assertEquals("hello world.", driver.text.toString());
+    }
+
+    public void testGroupInterval() throws Exception {
+        // Everything within a minute of the edit before it is one step
+        Driver driver = new Driver(new KnifeHistory(100, 60 * 1000, false));
+        type(driver, "a, b\nc");
+        assertTrue(driver.undo());
+        assertEquals("", driver.text.toString());
+        assertFalse(driver.undo());
+
+        // Nothing is grouped once the interval is over
+        driver = new Driver(new KnifeHistory(100, 1, false));
+        type(driver, "a");
+        Thread.sleep(20);
+        type(driver, "b");
+        assertTrue(driver.undo());
+        assertEquals("a", driver.text.toString());
+
+        // Neither by time nor by word, every char is a step
+        driver = new Driver(new KnifeHistory(100, 0, false));
+        type(driver, "abc");
+        assertTrue(driver.undo());
+        assertEquals("ab", driver.text.toString());
+    }
+
+    public void testFormattingSteps() {
+        Driver driver = new Driver(new KnifeHistory(100, 0, true));
+        driver.text.append("hello world");
+        driver.history.clear();
+
+        List<String> snapshots = new ArrayList<>();
+        snapshots.add(snapshot(driver.text));
+
+        // Journaled by the span watcher, no TextWatcher hears of these
+        StyleSpan bold = new StyleSpan(Typeface.BOLD);
+        driver.text.setSpan(bold, 0, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        snapshots.add(snapshot(driver.text));
+        driver.text.insert(5, "\n");
+        snapshots.add(snapshot(driver.text));
+
+        driver.history.beginGroup();
+        driver.text.setSpan(bold, 2, 9, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        driver.history.endGroup();
+        snapshots.add(snapshot(driver.text));
+
+        driver.history.beginGroup();
+        driver.text.setSpan(new UnderlineSpan(), 6, 12, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        driver.text.removeSpan(bold);
+        driver.history.endGroup();
+        snapshots.add(snapshot(driver.text));
+
+        assertUndoRedo(driver, snapshots);
+
+        // Span changes outside of a group join each other into one step
+        driver = new Driver(new KnifeHistory(100, 0, true));
+        driver.text.append("hello world");
+        driver.history.clear();
+        String before = snapshot(driver.text);
+        driver.text.setSpan(new StyleSpan(Typeface.ITALIC), 0, 5, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        driver.text.setSpan(new URLSpan("https://example.com"), 6, 11, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        String after = snapshot(driver.text);
+
+        assertTrue(driver.undo());
+        assertEquals(before, snapshot(driver.text));
+        assertFalse(driver.undo());
+        assertTrue(driver.redo());
+        assertEquals(after, snapshot(driver.text));
+    }
+
+    public void testSpill() {
+        File directory = new File(getContext().getCacheDir(), "knife-history-test");
+        delete(directory);
+        assertTrue(directory.isDirectory() || directory.mkdirs());
+
+        KnifeHistory history = new KnifeHistory(100, 0, false);
+        history.spill(directory, 2000, new KnifeSpanFactory(null));
+        Driver driver = new Driver(history);
+
+        Random random = new Random(1);
+        List<String> snapshots = new ArrayList<>();
+        snapshots.add(snapshot(driver.text));
+        for (int i = 0; i < 50; i++) {
+            int at = random.nextInt(driver.text.length() + 1);
+            StringBuilder insert = new StringBuilder();
+            for (int k = 0; k < 300; k++) {
+                insert.append(random.nextInt(10) == 0 ? '\n' : (char) ('a' + random.nextInt(26)));
+            }
+
+            driver.text.insert(at, insert);
+            snapshots.add(snapshot(driver.text));
+
+            // Formatting too, read back from the log as a KnifeDocument span
+            history.beginGroup();
+            driver.text.setSpan(new StyleSpan(Typeface.BOLD), at, at + 100, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            driver.text.setSpan(new URLSpan("https://example.com/" + i), at + 100, at + 200, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+            history.endGroup();
+            snapshots.add(snapshot(driver.text));
+        }
+
+        assertUndoRedo(driver, snapshots);
+
+        // The log must not grow with every sweep, compaction drops the records read back
+        long max = 0;
+        for (int sweep = 0; sweep < 200; sweep++) {
+            while (driver.undo()) {
+                // To the empty text
+            }
+
+            assertEquals("sweep " + sweep, snapshots.get(0), snapshot(driver.text));
+            while (driver.redo()) {
+                // Back to the last step
+            }
+
+            assertEquals("sweep " + sweep, snapshots.get(snapshots.size() - 1), snapshot(driver.text));
+            max = Math.max(max, size(directory));
+        }
+
+        assertTrue("log grew to " + max, max < 128 * 1024);
+        assertUndoRedo(driver, snapshots);
+        history.clear();
+        delete(directory);
+    }
+
+    public void testImages() {
+        final List<String> loaded = new ArrayList<>();
+        Driver driver = new Driver(new KnifeHistory(100, 0, false));
+        driver.history.setImageLoader(new KnifeHistory.ImageLoader() {
+            @Override
+            public ImageSpan load(String source, MediaImageType mediaImageType, int width, int height) {
+                loaded.add(source + " " + mediaImageType + " " + width + "x" + height);
+                if (mediaImageType == null) {
+                    return new ImageSpan(drawable(width, height), source);
+                }
+
+                return new ImageCustomSpan(drawable(width, height), source, mediaImageType);
+            }
+        });
+
+        driver.text.append("before  after");
+        ImageSpan html = new ImageSpan(drawable(40, 30), "https://example.com/a.png");
+        ImageSpan media = new ImageCustomSpan(drawable(80, 60), "/sdcard/b.png", MediaImageType.FILE);
+        driver.text.insert(7, image(html));
+        driver.text.insert(8, image(media));
+        driver.history.clear();
+        String images = snapshot(driver.text);
+
+        driver.text.delete(6, 10);
+        assertEquals("beforeafter", driver.text.toString());
+        assertTrue(driver.undo());
+        assertEquals(images, snapshot(driver.text));
+
+        // Built anew from the source, type and size, the deleted spans were not kept
+        assertEquals(2, loaded.size());
+        assertTrue(loaded.contains("https://example.com/a.png null 40x30"));
+        assertTrue(loaded.contains("/sdcard/b.png FILE 80x60"));
+        for (ImageSpan span : driver.text.getSpans(0, driver.text.length(), ImageSpan.class)) {
+            assertNotSame(html, span);
+            assertNotSame(media, span);
+        }
+
+        assertTrue(driver.redo());
+        assertEquals("beforeafter", driver.text.toString());
+        assertEquals(0, driver.text.getSpans(0, driver.text.length(), ImageSpan.class).length);
+    }
+
+    public void testSaveRestore() throws Exception {
+        File file = new File(getContext().getCacheDir(), "knife-history");
+        Driver driver = new Driver(new KnifeHistory(100, 0, false));
+        Random random = new Random(2);
+        List<String> snapshots = new ArrayList<>();
+        snapshots.add(snapshot(driver.text));
+        for (int i = 0; i < 30; i++) {
+            driver.change(random);
+            snapshots.add(snapshot(driver.text));
+        }
+
+        // Saved halfway back, the steps after the cursor are saved to be redone
+        for (int i = 0; i < 10; i++) {
+            assertTrue(driver.undo());
+        }
+
+        driver.history.save(file, driver.text);
+
+        Driver restored = new Driver(new KnifeHistory(100, 0, false));
+        restored.text.append(driver.text);
+        restored.history.clear();
+        assertTrue(restored.history.restore(file, restored.text, new KnifeSpanFactory(null)));
+        for (int i = 0; i < 10; i++) {
+            assertTrue(restored.redo());
+            assertEquals("redo " + i, snapshots.get(21 + i), snapshot(restored.text));
+        }
+
+        assertUndoRedo(restored, snapshots);
+
+        // Saved for another text of the same length, the history is left as it was
+        Driver other = new Driver(new KnifeHistory(100, 0, false));
+        other.text.append(driver.text);
+        other.history.clear();
+        String first = other.text.subSequence(0, 1).toString();
+        other.text.replace(0, 1, first.equals("x") ? "y" : "x");
+        assertFalse(other.history.restore(file, other.text, new KnifeSpanFactory(null)));
+        assertTrue(other.undo());
+        assertEquals(first, other.text.subSequence(0, 1).toString());
+        assertFalse(other.undo());
+
+        //noinspection ResultOfMethodCallIgnored
+        file.delete();
+    }
+
+    // Random changes, undo and redo, the snapshot at each step checked against the one taken
+    // when the text first got there. As many steps are kept as the history keeps.
+    private static void run(Random random, Editor editor, int size, int count) {
+        List<String> snapshots = new ArrayList<>();
+        snapshots.add(snapshot(editor.getText()));
+        int index = 0;
+
+        for (int i = 0; i < count; i++) {
+            int kind = random.nextInt(10);
+            if (kind < 3) {
+                assertEquals("step " + i, index > 0, editor.undo());
+                index = Math.max(0, index - 1);
+            } else if (kind < 5) {
+                assertEquals("step " + i, index < snapshots.size() - 1, editor.redo());
+                index = Math.min(snapshots.size() - 1, index + 1);
+            } else {
+                editor.change(random);
+
+                // Whatever was undone is gone, the oldest step goes once there are too many
+                snapshots.subList(index + 1, snapshots.size()).clear();
+                snapshots.add(snapshot(editor.getText()));
+                if (snapshots.size() > size + 1) {
+                    snapshots.remove(0);
+                }
+
+                index = snapshots.size() - 1;
+            }
+
+            assertEquals("step " + i, snapshots.get(index), snapshot(editor.getText()));
+        }
+
+        // And all the way back and forth
+        while (index > 0) {
+            assertTrue(editor.undo());
+            assertEquals("undo to " + index, snapshots.get(--index), snapshot(editor.getText()));
+        }
+
+        assertUndoRedo(editor, snapshots);
+    }
+
+    // From the first snapshot to the last and back, the editor starts on the first one
+    private static void assertUndoRedo(Editor editor, List<String> snapshots) {
+        while (editor.undo()) {
+            // To the oldest step kept
+        }
+
+        assertEquals("oldest", snapshots.get(0), snapshot(editor.getText()));
+        for (int i = 1; i < snapshots.size(); i++) {
+            assertTrue("redo " + i, editor.redo());
+            assertEquals("redo " + i, snapshots.get(i), snapshot(editor.getText()));
+        }
+
+        assertFalse(editor.redo());
+        for (int i = snapshots.size() - 2; i >= 0; i--) {
+            assertTrue("undo " + i, editor.undo());
+            assertEquals("undo " + i, snapshots.get(i), snapshot(editor.getText()));
+        }
+
+        while (editor.redo()) {
+            // Back to the newest step
+        }
+    }
+
+    // The text and every Knife span on it, in a stable order
+    private static String snapshot(Spanned text) {
+        KnifeDocument document = KnifeDocument.of(text);
+        List<String> spans = new ArrayList<>();
+        for (int i = 0; i < document.getSpanCount(); i++) {
+            int type = document.getSpanType(i);
+            String value = type == KnifeDocument.SPAN_LINK || type == KnifeDocument.SPAN_IMAGE
+                    ? document.getSpanString(i) : String.valueOf(document.getSpanValue(i));
+            spans.add(document.getSpanStart(i) + "-" + document.getSpanEnd(i) + " " + type + " " + value);
+        }
+
+        Collections.sort(spans);
+        return text + "\n" + spans;
+    }
+
+    private static void type(Driver driver, String text) {
+        for (int i = 0; i < text.length(); i++) {
+            driver.text.append(text.charAt(i));
+        }
+    }
+
+    private static CharSequence image(ImageSpan span) {
+        SpannableString image = new SpannableString("\uFFFC");
+        image.setSpan(span, 0, 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        return image;
+    }
+
+    private static Drawable drawable(int width, int height) {
+        Drawable drawable = new ColorDrawable();
+        drawable.setBounds(0, 0, width, height);
+        return drawable;
+    }
+
+    private static long size(File directory) {
+        long size = 0;
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                size += file.length();
+            }
+        }
+
+        return size;
+    }
+
+    private static void delete(File directory) {
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                //noinspection ResultOfMethodCallIgnored
+                file.delete();
+            }
+        }
+    }
+
+    private abstract static class Editor {
+        abstract Editable getText();
+
+        abstract boolean undo();
+
+        abstract boolean redo();
+
+        // Formats a range, one step each time
+        abstract void format(Random random, int start, int end);
+
+        // Exactly one step: an edit no grouping continues, or formatting
+        void change(Random random) {
+            Editable text = getText();
+            if (text.length() > 0 && random.nextBoolean()) {
+                int start = random.nextInt(text.length());
+                int end = start + 1 + random.nextInt(Math.min(12, text.length() - start));
+                format(random, start, end);
+                return;
+            }
+
+            int start = random.nextInt(text.length() + 1);
+            int end = Math.min(text.length(), start + random.nextInt(8));
+            String insert = INSERTS[random.nextInt(INSERTS.length)];
+
+            // An input method committing the same text is no step at all
+            if (text.subSequence(start, end).toString().equals(insert)) {
+                insert = insert + insert;
+            }
+
+            text.replace(start, end, insert);
+        }
+    }
+
+    private static final class KnifeTextEditor extends Editor {
+        private final KnifeText knife;
+
+        private KnifeTextEditor(KnifeText knife) {
+            this.knife = knife;
+        }
+
+        @Override
+        Editable getText() {
+            return knife.getEditableText();
+        }
+
+        @Override
+        boolean undo() {
+            if (!knife.undoValid()) {
+                return false;
+            }
+
+            knife.undo();
+            return true;
+        }
+
+        @Override
+        boolean redo() {
+            if (!knife.redoValid()) {
+                return false;
+            }
+
+            knife.redo();
+            return true;
+        }
+
+        // Toggled, so it always changes something
+        @Override
+        void format(Random random, int start, int end) {
+            knife.setSelection(start, end);
+            switch (random.nextInt(4)) {
+                case 0:
+                    knife.bold(!knife.contains(KnifeText.FORMAT_BOLD));
+                    break;
+                case 1:
+                    knife.italic(!knife.contains(KnifeText.FORMAT_ITALIC));
+                    break;
+                case 2:
+                    knife.underline(!knife.contains(KnifeText.FORMAT_UNDERLINED));
+                    break;
+                default:
+                    knife.strikethrough(!knife.contains(KnifeText.FORMAT_STRIKETHROUGH));
+                    break;
+            }
+        }
+    }
+
+    // Drives the history as KnifeText does, nothing is recorded while undo or redo are working
+    private static final class Driver extends Editor implements TextWatcher, NoCopySpan {
+        private final SpannableStringBuilder text = new SpannableStringBuilder();
+        private final KnifeHistory history;
+        private boolean working = false;
+
+        private Driver(KnifeHistory history) {
+            this.history = history;
+            text.setSpan(this, 0, 0, Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+            history.attach(text);
+        }
+
+        @Override
+        Editable getText() {
+            return text;
+        }
+
+        @Override
+        boolean undo() {
+            if (!history.canUndo()) {
+                return false;
+            }
+
+            working = true;
+            try {
+                history.undo(text);
+            } finally {
+                working = false;
+            }
+
+            return true;
+        }
+
+        @Override
+        boolean redo() {
+            if (!history.canRedo()) {
+                return false;
+            }
+
+            working = true;
+            try {
+                history.redo(text);
+            } finally {
+                working = false;
+            }
+
+            return true;
+        }
+
+        // Adds a span or removes one, as one group
+        @Override
+        void format(Random random, int start, int end) {
+            CharacterStyle[] spans = text.getSpans(0, text.length(), CharacterStyle.class);
+            history.beginGroup();
+            try {
+                if (spans.length > 0 && random.nextInt(3) == 0) {
+                    text.removeSpan(spans[random.nextInt(spans.length)]);
+                } else if (random.nextBoolean()) {
+                    text.setSpan(new StyleSpan(Typeface.BOLD), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                } else if (random.nextBoolean()) {
+                    text.setSpan(new UnderlineSpan(), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                } else {
+                    text.setSpan(new URLSpan("https://example.com/" + start), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            } finally {
+                history.endGroup();
+            }
+        }
+
+        @Override
+        public void beforeTextChanged(CharSequence s, int start, int count, int after) {
+            if (!working) {
+                history.beforeTextChanged(s, start, count);
+            }
+        }
+
+        @Override
+        public void onTextChanged(CharSequence s, int start, int before, int count) {
+            if (!working) {
+                history.onTextChanged(s, start, count);
+            }
+        }
+
+        @Override
+        public void afterTextChanged(Editable s) {
+            if (!working) {
+                history.afterTextChanged();
+            }
+        }
+    }
+}
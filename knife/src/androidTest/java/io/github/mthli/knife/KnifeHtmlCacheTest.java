@@ -0,0 +1,176 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.test.AndroidTestCase;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BulletSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ParagraphStyle;
+import android.text.style.QuoteSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.Random;
+
+/**
+ * The cached toHtml() must always write what an uncached KnifeParser.toHtml() writes, whatever
+ * edits, span changes and paragraph changes dropped fragments in between.
+ */
+public class KnifeHtmlCacheTest extends AndroidTestCase {
+    public void testEdits() {
+        run(new Random(1), false, true, false);
+    }
+
+    public void testSpanChanges() {
+        run(new Random(2), true, false, false);
+    }
+
+    public void testParagraphChanges() {
+        run(new Random(3), false, false, true);
+    }
+
+    public void testEverything() {
+        for (int seed = 0; seed < 20; seed++) {
+            run(new Random(seed), true, true, true);
+        }
+    }
+
+    public void testSnapshot() throws Exception {
+        Random random = new Random(4);
+        SpannableStringBuilder text = new SpannableStringBuilder("one\ntwo\nthree\nfour");
+        KnifeHtmlCache cache = new KnifeHtmlCache();
+        cache.attach(text);
+
+        for (int i = 0; i < 200; i++) {
+            change(random, text, true, true, true);
+
+            KnifeHtmlCache.Task task = cache.snapshot(text);
+            String html = task.call();
+            assertEquals("step " + i, KnifeParser.toHtml(text), html);
+
+            // Only kept if nothing changed since the snapshot
+            if (random.nextBoolean()) {
+                change(random, text, true, true, true);
+            }
+
+            cache.adopt(task);
+            assertEquals("step " + i, KnifeParser.toHtml(text), cache.toHtml(text));
+        }
+    }
+
+    public void testSnapshotKeepsText() throws Exception {
+        Random random = new Random(5);
+        SpannableStringBuilder text = new SpannableStringBuilder("one\ntwo\nthree\nfour");
+        KnifeHtmlCache cache = new KnifeHtmlCache();
+        cache.attach(text);
+
+        for (int i = 0; i < 200; i++) {
+            String expected = KnifeParser.toHtml(text);
+            KnifeHtmlCache.Task task = cache.snapshot(text);
+
+            // Edited before the executor gets to the snapshot
+            change(random, text, true, true, true);
+            assertEquals("step " + i, expected, task.call());
+        }
+    }
+
+    private static void run(Random random, boolean spans, boolean edits, boolean paragraphs) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        for (int i = 0; i < 20; i++) {
+            text.append("line ").append(String.valueOf(i)).append('\n');
+        }
+
+        KnifeHtmlCache cache = new KnifeHtmlCache();
+        cache.attach(text);
+
+        for (int i = 0; i < 500; i++) {
+            change(random, text, spans || i % 10 == 0, edits || i % 10 == 5, paragraphs);
+
+            // Let a few changes pile up between the writes now and then
+            if (random.nextInt(3) > 0) {
+                assertEquals("step " + i, KnifeParser.toHtml(text), cache.toHtml(text));
+            }
+        }
+    }
+
+    private static void change(Random random, SpannableStringBuilder text, boolean spans, boolean edits, boolean paragraphs) {
+        int kind = random.nextInt(3);
+        if (kind == 0 && edits) {
+            edit(random, text);
+        } else if (kind == 1 && spans) {
+            characterSpan(random, text);
+        } else if (kind == 2 && paragraphs) {
+            paragraphSpan(random, text);
+        } else if (edits) {
+            edit(random, text);
+        }
+    }
+
+    private static void edit(Random random, SpannableStringBuilder text) {
+        int start = random.nextInt(text.length() + 1);
+        int end = Math.min(text.length(), start + (random.nextBoolean() ? 0 : random.nextInt(8)));
+        String[] inserts = {"", "a", "b c", "\n", "x\ny", "<&>", "\n\n"};
+        text.replace(start, end, inserts[random.nextInt(inserts.length)]);
+    }
+
+    private static void characterSpan(Random random, Spannable text) {
+        Object[] spans = text.getSpans(0, text.length(), Object.class);
+        if (spans.length > 0 && random.nextInt(4) == 0) {
+            Object span = spans[random.nextInt(spans.length)];
+            if (!(span instanceof ParagraphStyle) && !(span instanceof KnifeHtmlCache)) {
+                text.removeSpan(span);
+                return;
+            }
+        }
+
+        int start = random.nextInt(text.length() + 1);
+        int end = Math.min(text.length(), start + random.nextInt(12));
+        Object span;
+        switch (random.nextInt(5)) {
+            case 0:
+                span = new StyleSpan(Typeface.BOLD);
+                break;
+            case 1:
+                span = new UnderlineSpan();
+                break;
+            case 2:
+                span = new StrikethroughSpan();
+                break;
+            case 3:
+                span = new URLSpan("https://example.com");
+                break;
+            default:
+                span = new ForegroundColorSpan(0xffff0000);
+                break;
+        }
+
+        text.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    // Over whole lines, as KnifeText sets bullets and quotes
+    private static void paragraphSpan(Random random, Spannable text) {
+        ParagraphStyle[] spans = text.getSpans(0, text.length(), ParagraphStyle.class);
+        if (spans.length > 0 && random.nextBoolean()) {
+            text.removeSpan(spans[random.nextInt(spans.length)]);
+            return;
+        }
+
+        int start = random.nextInt(text.length() + 1);
+        while (start > 0 && text.charAt(start - 1) != '\n') {
+            start--;
+        }
+
+        int end = start;
+        while (end < text.length() && text.charAt(end) != '\n') {
+            end++;
+        }
+
+        if (start < end) {
+            text.setSpan(random.nextBoolean() ? new BulletSpan() : new QuoteSpan(), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+    }
+}
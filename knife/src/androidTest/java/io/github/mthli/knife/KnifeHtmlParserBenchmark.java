@@ -0,0 +1,58 @@
+package io.github.mthli.knife;
+
+import android.test.AndroidTestCase;
+import android.util.Log;
+
+/**
+ * Parsing time must grow linearly with the size of the list, TagSoup and the old tag handler
+ * went quadratic on long lists.
+ */
+public class KnifeHtmlParserBenchmark extends AndroidTestCase {
+    private static final String TAG = "KnifeHtmlParser";
+
+    public void testListScalesLinearly() {
+        String small = list(1000);
+        String large = list(10000);
+
+        // Warm up the JIT first
+        for (int i = 0; i < 5; i++) {
+            KnifeParser.parseHtml(large);
+        }
+
+        long smallTime = bestOf(small);
+        long largeTime = bestOf(large);
+        Log.i(TAG, "1000 items: " + smallTime / 1000 + " us, 10000 items: " + largeTime / 1000 + " us");
+
+        // 10x the items, linear is about 10x the time and quadratic about 100x
+        assertTrue("10000 items took " + largeTime / (double) smallTime + "x as long as 1000", largeTime < smallTime * 30);
+    }
+
+    public void testListRoundTrip() {
+        String html = list(10000);
+        KnifeDocument document = KnifeParser.parseHtml(html);
+
+        assertEquals(30000, document.getSpanCount());
+        assertEquals(html, KnifeParser.toHtml(KnifeParser.fromHtml(html)));
+    }
+
+    private static long bestOf(String html) {
+        long best = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            KnifeParser.parseHtml(html);
+            best = Math.min(best, System.nanoTime() - start);
+        }
+
+        return best;
+    }
+
+    // One bullet per line, as KnifeParser.toHtml() writes them
+    private static String list(int items) {
+        StringBuilder html = new StringBuilder();
+        for (int i = 0; i < items; i++) {
+            html.append("<ul><li>item <b>").append(i).append("</b> <del>done</del></li></ul>");
+        }
+
+        return html.toString();
+    }
+}
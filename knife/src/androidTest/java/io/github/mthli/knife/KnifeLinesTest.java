@@ -0,0 +1,74 @@
+package io.github.mthli.knife;
+
+import android.test.AndroidTestCase;
+import android.text.SpannableStringBuilder;
+
+import java.util.Random;
+
+/**
+ * The line index must always split the text where split("\n") does, whatever edits moved its gap
+ * in between.
+ */
+public class KnifeLinesTest extends AndroidTestCase {
+    public void testEdits() {
+        for (int seed = 0; seed < 50; seed++) {
+            run(new Random(seed), "");
+        }
+    }
+
+    public void testLongText() {
+        StringBuilder builder = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            builder.append("line ").append(i).append('\n');
+        }
+
+        run(new Random(1), builder.toString());
+    }
+
+    public void testAttach() {
+        SpannableStringBuilder first = new SpannableStringBuilder("a\nb");
+        SpannableStringBuilder second = new SpannableStringBuilder("\n\nc\n");
+        KnifeLines lines = new KnifeLines();
+        lines.attach(first);
+        lines.attach(second);
+        assertLines(second, lines, "attach");
+
+        // The old text is not watched anymore
+        first.append("\n\n\n");
+        assertLines(second, lines, "detached");
+    }
+
+    private static void run(Random random, String initial) {
+        SpannableStringBuilder text = new SpannableStringBuilder(initial);
+        KnifeLines lines = new KnifeLines();
+        lines.attach(text);
+
+        String[] inserts = {"", "a", "b c", "\n", "x\ny", "\n\n", "long line\nand another\n"};
+        for (int i = 0; i < 500; i++) {
+            int start = random.nextInt(text.length() + 1);
+            int end = Math.min(text.length(), start + (random.nextBoolean() ? 0 : random.nextInt(12)));
+            text.replace(start, end, inserts[random.nextInt(inserts.length)]);
+            assertLines(text, lines, "step " + i);
+        }
+    }
+
+    private static void assertLines(CharSequence text, KnifeLines lines, String message) {
+        // With the trailing empty lines, the text after a last '\n' is a line too
+        String[] split = text.toString().split("\n", -1);
+        assertEquals(message, split.length, lines.getLineCount());
+
+        int start = 0;
+        for (int line = 0; line < split.length; line++) {
+            int end = start + split[line].length();
+            assertEquals(message + " line " + line, start, lines.getLineStart(line));
+            assertEquals(message + " line " + line, end, lines.getLineEnd(line));
+
+            // The '\n' ending the line is on it
+            for (int offset = start; offset <= end; offset++) {
+                assertEquals(message + " offset " + offset, line, lines.getLineForOffset(offset));
+            }
+
+            start = end + 1;
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package io.github.mthli.knife;
+
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.test.AndroidTestCase;
+import android.text.Html;
+import android.text.Spanned;
+import android.text.style.ImageSpan;
+import android.text.style.URLSpan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What toHtml() writes must read back into the same text with the same formats on every char, so
+ * writing it again gives the same HTML.
+ */
+public class KnifeParserTest extends AndroidTestCase {
+    private static final Html.ImageGetter IMAGE_GETTER = new Html.ImageGetter() {
+        @Override
+        public Drawable getDrawable(String source) {
+            Drawable drawable = new ColorDrawable();
+            drawable.setBounds(0, 0, 100, 100);
+            return drawable;
+        }
+    };
+
+    public void testHeadings() {
+        assertRoundTrip("<h1>Title</h1><h3>Sub &amp; more</h3>plain");
+    }
+
+    public void testAlignment() {
+        assertRoundTrip("<p align=\"center\">centered</p>left<p align=\"right\">right</p>");
+    }
+
+    public void testQuotes() {
+        assertRoundTrip("<blockquote>quoted<br>two</blockquote>after");
+    }
+
+    public void testBullets() {
+        assertRoundTrip("<ul><li>one</li><li>two</li></ul>after");
+    }
+
+    public void testLinks() {
+        Spanned text = assertRoundTrip("<a href=\"https://example.com/?a=1&amp;b=2\">link</a> and more");
+        URLSpan[] links = text.getSpans(0, text.length(), URLSpan.class);
+        assertEquals(1, links.length);
+        assertEquals("https://example.com/?a=1&b=2", links[0].getURL());
+    }
+
+    public void testImages() {
+        Spanned text = assertRoundTrip("before <img src=\"https://example.com/a.png\"> after");
+        ImageSpan[] images = text.getSpans(0, text.length(), ImageSpan.class);
+        assertEquals(1, images.length);
+        assertEquals("https://example.com/a.png", images[0].getSource());
+    }
+
+    public void testFontColor() {
+        assertRoundTrip("<font color=\"#ff0000\">red</font> plain <font color=\"#0000ff\">blue</font>");
+    }
+
+    public void testCharacterStyles() {
+        assertRoundTrip("<b>bold <i>both</i></b><u>under</u><del>struck</del>");
+    }
+
+    public void testEntities() {
+        Spanned text = assertRoundTrip("a&nbsp;b &lt;tag&gt; &quot;q&quot; &amp; &#233; &#x1F600;");
+
+        // A non-breaking space reads as a plain one
+        assertEquals("a b <tag> \"q\" & \u00e9 \ud83d\ude00", text.toString());
+    }
+
+    public void testEverything() {
+        assertRoundTrip("<h2>Title</h2><p align=\"center\">centered <b>bold</b></p>"
+                + "<blockquote>quoted <a href=\"https://example.com\">link</a></blockquote>"
+                + "<ul><li><font color=\"#00ff00\">green</font></li><li>two&nbsp;words</li></ul>"
+                + "<img src=\"https://example.com/a.png\">&lt;end&gt;");
+    }
+
+    // Returns the text read from the written HTML
+    private static Spanned assertRoundTrip(String html) {
+        Spanned first = KnifeParser.fromHtml(html, IMAGE_GETTER);
+        String written = KnifeParser.toHtml(first);
+
+        Spanned second = KnifeParser.fromHtml(written, IMAGE_GETTER);
+        assertEquals(html, written, KnifeParser.toHtml(second));
+        assertEquals(html, first.toString(), second.toString());
+        assertSpans(html, KnifeDocument.of(first), KnifeDocument.of(second));
+        return second;
+    }
+
+    // Char by char, toHtml() may write one span as several touching tags
+    private static void assertSpans(String message, KnifeDocument expected, KnifeDocument actual) {
+        for (int i = 0; i < expected.getText().length(); i++) {
+            assertEquals(message + " at " + i, formats(expected, i), formats(actual, i));
+        }
+    }
+
+    private static List<String> formats(KnifeDocument document, int offset) {
+        List<String> formats = new ArrayList<>();
+        for (int i = 0; i < document.getSpanCount(); i++) {
+            if (document.getSpanStart(i) > offset || offset >= document.getSpanEnd(i)) {
+                continue;
+            }
+
+            int type = document.getSpanType(i);
+            if (type == KnifeDocument.SPAN_LINK || type == KnifeDocument.SPAN_IMAGE) {
+                formats.add(type + " " + document.getSpanString(i));
+            } else {
+                formats.add(type + " " + document.getSpanValue(i));
+            }
+        }
+
+        Collections.sort(formats);
+        return formats;
+    }
+}
@@ -0,0 +1,425 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.graphics.drawable.ColorDrawable;
+import android.test.AndroidTestCase;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.BulletSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ImageSpan;
+import android.text.style.ParagraphStyle;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+import android.util.Log;
+
+import java.io.IOException;
+import java.util.Random;
+
+import io.github.mthli.knife.defaults.AligningDefault;
+import io.github.mthli.knife.defaults.HeadingTagDefault;
+import io.github.mthli.knife.spans.AlignmentSpan;
+
+/**
+ * KnifeParser.toHtml() must write the same HTML as the nested getSpans() serializer it replaced,
+ * kept below as NestedGetSpans, and write it faster.
+ */
+public class KnifeSerializerBenchmark extends AndroidTestCase {
+    private static final String TAG = "KnifeSerializer";
+
+    public void testMatchesNestedGetSpans() throws IOException {
+        Random random = new Random(42);
+        for (int i = 0; i < 500; i++) {
+            Spanned text = document(random, 1 + random.nextInt(200));
+            assertEquals("document " + i, NestedGetSpans.toHtml(text), KnifeParser.toHtml(text));
+        }
+    }
+
+    public void testFasterThanNestedGetSpans() throws IOException {
+        Spanned text = document(new Random(7), 200000);
+
+        // Warm up the JIT first
+        for (int i = 0; i < 3; i++) {
+            KnifeParser.toHtml(text);
+            NestedGetSpans.toHtml(text);
+        }
+
+        long time = Long.MAX_VALUE;
+        long nestedTime = Long.MAX_VALUE;
+        for (int i = 0; i < 5; i++) {
+            long start = System.nanoTime();
+            KnifeParser.toHtml(text);
+            time = Math.min(time, System.nanoTime() - start);
+
+            start = System.nanoTime();
+            NestedGetSpans.toHtml(text);
+            nestedTime = Math.min(nestedTime, System.nanoTime() - start);
+        }
+
+        Log.i(TAG, "toHtml: " + time / 1000 + " us, nested getSpans(): " + nestedTime / 1000 + " us");
+        assertTrue("toHtml took " + time / (double) nestedTime + "x as long as nested getSpans()", time < nestedTime);
+    }
+
+    // Lines of text with the spans KnifeText sets: bullets and quotes over whole lines, character
+    // spans anywhere, overlapping and empty ones included
+    private static Spanned document(Random random, int length) {
+        SpannableStringBuilder text = new SpannableStringBuilder();
+        String chars = "abc  <>&\u00e9\ud83d\ude00\n";
+        while (text.length() < length) {
+            text.append(chars.charAt(random.nextInt(chars.length())));
+        }
+
+        int lineStart = 0;
+        for (int i = 0; i <= text.length(); i++) {
+            if (i < text.length() && text.charAt(i) != '\n') {
+                continue;
+            }
+
+            if (i > lineStart) {
+                int paragraph = random.nextInt(6);
+                if (paragraph == 0 || paragraph == 2) {
+                    text.setSpan(new BulletSpan(), lineStart, i, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+
+                if (paragraph == 1 || paragraph == 2) {
+                    text.setSpan(new QuoteSpan(), lineStart, i, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+                }
+            }
+
+            lineStart = i + 1;
+        }
+
+        int spans = length / 4;
+        for (int i = 0; i < spans; i++) {
+            int start = random.nextInt(text.length() + 1);
+            int end = Math.min(text.length(), start + random.nextInt(20));
+            text.setSpan(characterSpan(random), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        for (int i = 0; i < length / 50; i++) {
+            int start = random.nextInt(text.length());
+            text.setSpan(new ImageSpan(new ColorDrawable(), "image" + i + ".png"), start, start + 1, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+
+        return text;
+    }
+
+    private static Object characterSpan(Random random) {
+        switch (random.nextInt(8)) {
+            case 0:
+                return new StyleSpan(Typeface.BOLD);
+            case 1:
+                return new StyleSpan(Typeface.ITALIC);
+            case 2:
+                return new UnderlineSpan();
+            case 3:
+                return new StrikethroughSpan();
+            case 4:
+                return new URLSpan("https://example.com/" + random.nextInt(100));
+            case 5:
+                return new ForegroundColorSpan(0xff000000 | random.nextInt(0x1000000));
+            case 6:
+                return new RelativeSizeSpan(HeadingTagDefault.values()[random.nextInt(HeadingTagDefault.values().length)].getValue());
+            default:
+                return new AlignmentSpan(AligningDefault.values()[random.nextInt(AligningDefault.values().length)].getValue());
+        }
+    }
+
+    // KnifeParser.toHtml() as it was before KnifeSerializer, one getSpans() per transition
+    private static final class NestedGetSpans {
+        static String toHtml(Spanned text) throws IOException {
+            StringBuilder out = new StringBuilder();
+            withinHtml(new KnifeHtmlWriter(out), text);
+            return out.toString();
+        }
+
+        private static void withinHtml(KnifeHtmlWriter out, Spanned text) throws IOException {
+            int next;
+
+            for (int i = 0; i < text.length(); i = next) {
+                next = text.nextSpanTransition(i, text.length(), ParagraphStyle.class);
+
+                ParagraphStyle[] styles = text.getSpans(i, next, ParagraphStyle.class);
+                if (styles.length == 2) {
+                    if (styles[0] instanceof BulletSpan && styles[1] instanceof QuoteSpan) {
+                        // Let a <br> follow the BulletSpan or QuoteSpan end, so next++
+                        withinBulletThenQuote(out, text, i, next++);
+                    } else if (styles[0] instanceof QuoteSpan && styles[1] instanceof BulletSpan) {
+                        withinQuoteThenBullet(out, text, i, next++);
+                    } else {
+                        withinContent(out, text, i, next);
+                    }
+                } else if (styles.length == 1) {
+                    if (styles[0] instanceof BulletSpan) {
+                        withinBullet(out, text, i, next++);
+                    } else if (styles[0] instanceof QuoteSpan) {
+                        withinQuote(out, text, i, next++);
+                    } else {
+                        withinContent(out, text, i, next);
+                    }
+                } else {
+                    withinContent(out, text, i, next);
+                }
+            }
+        }
+
+        private static void withinBulletThenQuote(KnifeHtmlWriter out, Spanned text, int start, int end) throws IOException {
+            out.append("<ul><li>");
+            withinQuote(out, text, start, end);
+            out.append("</li>");
+            out.closeBlock("</ul>");
+        }
+
+        private static void withinQuoteThenBullet(KnifeHtmlWriter out, Spanned text, int start, int end) throws IOException {
+            out.append("<blockquote>");
+            withinBullet(out, text, start, end);
+            out.closeBlock("</blockquote>");
+        }
+
+        private static void withinBullet(KnifeHtmlWriter out, Spanned text, int start, int end) throws IOException {
+            out.append("<ul>");
+
+            int next;
+
+            for (int i = start; i < end; i = next) {
+                next = text.nextSpanTransition(i, end, BulletSpan.class);
+
+                BulletSpan[] spans = text.getSpans(i, next, BulletSpan.class);
+                for (BulletSpan span : spans) {
+                    out.append("<li>");
+                }
+
+                withinContent(out, text, i, next);
+                for (BulletSpan span : spans) {
+                    out.append("</li>");
+                }
+            }
+
+            out.closeBlock("</ul>");
+        }
+
+        private static void withinQuote(KnifeHtmlWriter out, Spanned text, int start, int end) throws IOException {
+            int next;
+
+            for (int i = start; i < end; i = next) {
+                next = text.nextSpanTransition(i, end, QuoteSpan.class);
+
+                QuoteSpan[] quotes = text.getSpans(i, next, QuoteSpan.class);
+                for (QuoteSpan quote : quotes) {
+                    out.append("<blockquote>");
+                }
+
+                withinContent(out, text, i, next);
+                for (QuoteSpan quote : quotes) {
+                    out.closeBlock("</blockquote>");
+                }
+            }
+        }
+
+        private static void withinContent(KnifeHtmlWriter out, Spanned text, int start, int end) throws IOException {
+            int next;
+
+            for (int i = start; i < end; i = next) {
+                next = TextUtils.indexOf(text, '\n', i, end);
+                if (next < 0) {
+                    next = end;
+                }
+
+                int nl = 0;
+                while (next < end && text.charAt(next) == '\n') {
+                    next++;
+                    nl++;
+                }
+
+                withinParagraph(out, text, i, next - nl, nl);
+            }
+        }
+
+        // Copy from https://android.googlesource.com/platform/frameworks/base/+/master/core/java/android/text/Html.java,
+        // remove some tag because we don't need them in Knife.
+        private static void withinParagraph(KnifeHtmlWriter out, Spanned text, int start, int end, int nl) throws IOException {
+            int next;
+
+            for (int i = start; i < end; i = next) {
+                next = text.nextSpanTransition(i, end, CharacterStyle.class);
+
+                CharacterStyle[] spans = text.getSpans(i, next, CharacterStyle.class);
+                for (CharacterStyle span : spans) {
+                    if (span instanceof StyleSpan) {
+                        int style = ((StyleSpan) span).getStyle();
+
+                        if ((style & Typeface.BOLD) != 0) {
+                            out.append("<b>");
+                        }
+
+                        if ((style & Typeface.ITALIC) != 0) {
+                            out.append("<i>");
+                        }
+                    }
+
+                    if (span instanceof UnderlineSpan) {
+                        out.append("<u>");
+                    }
+
+                    // Use standard strikethrough tag <del> rather than <s> or <strike>
+                    if (span instanceof StrikethroughSpan) {
+                        out.append("<del>");
+                    }
+
+                    if (span instanceof URLSpan) {
+                        out.append("<a href=\"");
+                        out.append(((URLSpan) span).getURL());
+                        out.append("\">");
+                    }
+
+                    if (span instanceof ImageSpan) {
+                        out.append("<img width=\"100%\" src=\"");
+                        out.append(((ImageSpan) span).getSource());
+                        out.append("\">");
+
+                        // Don't output the dummy character underlying the image.
+                        i = next;
+                    }
+
+                    if (span instanceof ForegroundColorSpan) {
+                        ForegroundColorSpan foregroundColorSpan = ((ForegroundColorSpan) span);
+                        out.append("<font color='");
+                        out.append(KnifeUtil.intColorToHex(foregroundColorSpan.getForegroundColor()));
+                        out.append("'>");
+                    }
+
+                    if (span instanceof RelativeSizeSpan) {
+                        float size = ((RelativeSizeSpan) span).getSizeChange();
+                        if (size == HeadingTagDefault.H1.getValue()) {
+                            out.append("<h1>");
+                        } else if (size == HeadingTagDefault.H2.getValue()) {
+                            out.append("<h2>");
+                        } else if (size == HeadingTagDefault.H3.getValue()) {
+                            out.append("<h3>");
+                        } else if (size == HeadingTagDefault.H4.getValue()) {
+                            out.append("<h4>");
+                        } else if (size == HeadingTagDefault.H5.getValue()) {
+                            out.append("<h5>");
+                        } else if (size == HeadingTagDefault.H6.getValue()) {
+                            out.append("<h6>");
+                        }
+                    }
+
+                    if (span instanceof AlignmentSpan) {
+                        AligningDefault aligningDefault = ((AlignmentSpan) span).getAlignmentData();
+                        if (aligningDefault == AligningDefault.LEFT) {
+                            out.append("<p align='left'>");
+                        } else if (aligningDefault == AligningDefault.RIGHT) {
+                            out.append("<p align='right'>");
+                        } else if (aligningDefault == AligningDefault.CENTER) {
+                            out.append("<p align='center'>");
+                        } else if (aligningDefault == AligningDefault.JUSTIFY) {
+                            out.append("<p align='justify'>");
+                        }
+                    }
+                }
+
+                withinStyle(out, text, i, next);
+                for (int j = spans.length - 1; j >= 0; j--) {
+                    if (spans[j] instanceof URLSpan) {
+                        out.append("</a>");
+                    }
+
+                    if (spans[j] instanceof StrikethroughSpan) {
+                        out.append("</del>");
+                    }
+
+                    if (spans[j] instanceof UnderlineSpan) {
+                        out.append("</u>");
+                    }
+
+                    if (spans[j] instanceof StyleSpan) {
+                        int style = ((StyleSpan) spans[j]).getStyle();
+
+                        if ((style & Typeface.BOLD) != 0) {
+                            out.append("</b>");
+                        }
+
+                        if ((style & Typeface.ITALIC) != 0) {
+                            out.append("</i>");
+                        }
+                    }
+
+                    if (spans[j] instanceof RelativeSizeSpan) {
+                        float size = ((RelativeSizeSpan) spans[j]).getSizeChange();
+                        if (size == HeadingTagDefault.H1.getValue()) {
+                            out.append("</h1>");
+                        } else if (size == HeadingTagDefault.H2.getValue()) {
+                            out.append("</h2>");
+                        } else if (size == HeadingTagDefault.H3.getValue()) {
+                            out.append("</h3>");
+                        } else if (size == HeadingTagDefault.H4.getValue()) {
+                            out.append("</h4>");
+                        } else if (size == HeadingTagDefault.H5.getValue()) {
+                            out.append("</h5>");
+                        } else if (size == HeadingTagDefault.H6.getValue()) {
+                            out.append("</h6>");
+                        }
+                        //out.append("</h>"); //h1,h2,h3,...
+                    }
+
+                    if (spans[j] instanceof AlignmentSpan) {
+                        out.append("</p>");
+                    }
+
+                    if (spans[j] instanceof ForegroundColorSpan) {
+                        out.append("</font>");
+                    }
+
+                    /*if (spans[j] instanceof ImageSpan) {
+                        out.append("</img>");
+                    }*/
+                }
+            }
+
+            for (int i = 0; i < nl; i++) {
+                out.lineBreak();
+            }
+        }
+
+        private static void withinStyle(KnifeHtmlWriter out, CharSequence text, int start, int end) throws IOException {
+            for (int i = start; i < end; i++) {
+                char c = text.charAt(i);
+
+                if (c == '<') {
+                    out.append("&lt;");
+                } else if (c == '>') {
+                    out.append("&gt;");
+                } else if (c == '&') {
+                    out.append("&amp;");
+                } else if (c >= 0xD800 && c <= 0xDFFF) {
+                    if (c < 0xDC00 && i + 1 < end) {
+                        char d = text.charAt(i + 1);
+                        if (d >= 0xDC00 && d <= 0xDFFF) {
+                            i++;
+                            int codepoint = 0x010000 | (int) c - 0xD800 << 10 | (int) d - 0xDC00;
+                            out.append("&#").append(codepoint).append(";");
+                        }
+                    }
+                } else if (c > 0x7E || c < ' ') {
+                    out.append("&#").append((int) c).append(";");
+                } else if (c == ' ') {
+                    while (i + 1 < end && text.charAt(i + 1) == ' ') {
+                        out.append("&nbsp;");
+                        i++;
+                    }
+
+                    out.append(' ');
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,77 @@
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.test.AndroidTestCase;
+import android.text.Editable;
+import android.text.Spanned;
+import android.text.style.StyleSpan;
+
+/**
+ * A format toggled with nothing selected must style what is typed from the cursor on, even when the
+ * IME replaces the whole composing word begun before the toggle.
+ */
+public class KnifeTypingStyleTest extends AndroidTestCase {
+    public void testTyping() {
+        KnifeText knife = knife("hel");
+        knife.bold(true);
+
+        Editable text = knife.getEditableText();
+        text.insert(3, "l");
+        text.insert(4, "o");
+        assertStyle(text, "hello", Typeface.BOLD, 3, 5);
+    }
+
+    public void testComposingReplacement() {
+        KnifeText knife = knife("hel");
+        knife.bold(true);
+
+        // The IME commits the composing word as a whole, one letter more each time
+        Editable text = knife.getEditableText();
+        text.replace(0, 3, "hell");
+        text.replace(0, 4, "hello");
+        assertStyle(text, "hello", Typeface.BOLD, 3, 5);
+    }
+
+    public void testCorrection() {
+        KnifeText knife = knife("hel");
+        knife.bold(true);
+
+        Editable text = knife.getEditableText();
+        text.replace(0, 3, "hello");
+
+        // An autocorrection of the whole word keeps the part typed before the toggle plain
+        text.replace(0, 5, "Hello");
+        assertStyle(text, "Hello", Typeface.BOLD, 3, 5);
+    }
+
+    public void testTwoToggles() {
+        KnifeText knife = knife("hel");
+        knife.bold(true);
+
+        Editable text = knife.getEditableText();
+        text.replace(0, 3, "hell");
+        knife.italic(true);
+        text.replace(0, 4, "hello");
+        assertStyle(text, "hello", Typeface.BOLD, 3, 5);
+        assertStyle(text, "hello", Typeface.ITALIC, 4, 5);
+    }
+
+    private KnifeText knife(String text) {
+        KnifeText knife = new KnifeText(getContext());
+        knife.setText(text);
+        knife.setSelection(text.length());
+        return knife;
+    }
+
+    private static void assertStyle(Spanned text, String expected, int style, int start, int end) {
+        assertEquals(expected, text.toString());
+        for (int i = 0; i < text.length(); i++) {
+            boolean styled = false;
+            for (StyleSpan span : text.getSpans(i, i + 1, StyleSpan.class)) {
+                styled |= span.getStyle() == style;
+            }
+
+            assertEquals("at " + i, i >= start && i < end, styled);
+        }
+    }
+}
@@ -0,0 +1,203 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextUtils;
+
+import java.util.Arrays;
+import java.util.Comparator;
+
+// One character format of KnifeText, applied, removed and queried over ranges the same way for
+// every format. Register custom formats with KnifeText.registerFormat().
+//
+// Applying sets the span and merges it with the spans of the same format and value it overlaps
+// or touches. Removing shrinks the spans reaching out of the range in place and only builds a new
+// span for the far side of one cut in the middle. Whether a range is covered is answered from
+// KnifeFormats.
+public abstract class FormatHandler<T> {
+    private final Class<T> type;
+
+    protected FormatHandler(Class<T> type) {
+        this.type = type;
+    }
+
+    public final Class<T> getType() {
+        return type;
+    }
+
+    // A span for the piece after the range a removal cuts out of the span
+    protected abstract T copy(T span);
+
+    // Whether the span of the type is of this format, e.g. a StyleSpan of the right style
+    protected boolean matches(T span) {
+        return true;
+    }
+
+    // Spans that format the text the same, merged where they overlap or touch. Same class and
+    // same KnifeDocument value by default.
+    protected boolean isSameFormat(T a, T b) {
+        return a.getClass() == b.getClass()
+                && KnifeDocument.spanValue(a) == KnifeDocument.spanValue(b)
+                && TextUtils.equals(KnifeDocument.spanString(a), KnifeDocument.spanString(b));
+    }
+
+    // False removes every span the range touches as a whole, as links are
+    protected boolean isSplittable() {
+        return true;
+    }
+
+    public final void apply(Spannable text, T span, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+
+        if (!isSplittable()) {
+            remove(text, start, end);
+        }
+
+        text.setSpan(span, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        coalesce(text, start, end);
+    }
+
+    // Covers [start, end) with the format of the span, growing the span of the same format that
+    // reaches start instead of setting a copy, so text typed key by key ends up under one span
+    final void extend(Spannable text, T span, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+
+        if (isSplittable()) {
+            for (T before : text.getSpans(start, start, type)) {
+                if (!matches(before) || !isSameFormat(before, span)) {
+                    continue;
+                }
+
+                int beforeStart = text.getSpanStart(before);
+                int beforeEnd = text.getSpanEnd(before);
+                if (beforeStart < start && beforeEnd >= start) {
+                    if (beforeEnd < end) {
+                        text.setSpan(before, beforeStart, end, text.getSpanFlags(before));
+                        coalesce(text, start, end);
+                    }
+
+                    return;
+                }
+            }
+        }
+
+        apply(text, copy(span), start, end);
+    }
+
+    public final void remove(Spannable text, int start, int end) {
+        if (start >= end) {
+            return;
+        }
+
+        for (T span : text.getSpans(start, end, type)) {
+            if (!matches(span)) {
+                continue;
+            }
+
+            int spanStart = text.getSpanStart(span);
+            int spanEnd = text.getSpanEnd(span);
+            int flags = text.getSpanFlags(span);
+
+            if (!isSplittable() || spanStart >= start && spanEnd <= end) {
+                text.removeSpan(span);
+                continue;
+            }
+
+            if (spanEnd > end) {
+                T after = spanStart < start ? copy(span) : span;
+                text.setSpan(after, end, spanEnd, flags);
+            }
+
+            if (spanStart < start) {
+                text.setSpan(span, spanStart, start, flags);
+            }
+        }
+
+        coalesce(text, start, end);
+    }
+
+    // Merges the spans reaching into or touching [start, end]
+    final void coalesce(Spannable text, int start, int end) {
+        coalesce(text, text.getSpans(Math.max(0, start - 1), Math.min(text.length(), end + 1), type));
+    }
+
+    // Keeps the first span of every run of the same format, the others and the empty ones go
+    final void coalesce(final Spannable text, T[] spans) {
+        Arrays.sort(spans, new Comparator<T>() {
+            @Override
+            public int compare(T a, T b) {
+                int startA = text.getSpanStart(a);
+                int startB = text.getSpanStart(b);
+                return startA < startB ? -1 : startA == startB ? 0 : 1;
+            }
+        });
+
+        // The runs still open at the span, of different formats
+        Object[] runs = new Object[4];
+        int[] runEnds = new int[4];
+        int runCount = 0;
+
+        for (T span : spans) {
+            if (!matches(span)) {
+                continue;
+            }
+
+            int spanStart = text.getSpanStart(span);
+            int spanEnd = text.getSpanEnd(span);
+            if (spanStart >= spanEnd) {
+                text.removeSpan(span);
+                continue;
+            }
+
+            int run = -1;
+            for (int i = 0; i < runCount; i++) {
+                // Passed, the spans come in start order
+                if (runEnds[i] < spanStart) {
+                    runs[i] = runs[--runCount];
+                    runEnds[i] = runEnds[runCount];
+                    i--;
+                } else if (isSameFormat(type.cast(runs[i]), span)) {
+                    run = i;
+                }
+            }
+
+            if (run < 0) {
+                if (runCount == runs.length) {
+                    runs = Arrays.copyOf(runs, runCount * 2);
+                    runEnds = Arrays.copyOf(runEnds, runCount * 2);
+                }
+
+                runs[runCount] = span;
+                runEnds[runCount] = spanEnd;
+                runCount++;
+                continue;
+            }
+
+            text.removeSpan(span);
+            if (spanEnd > runEnds[run]) {
+                runEnds[run] = spanEnd;
+                text.setSpan(runs[run], text.getSpanStart(runs[run]), spanEnd, text.getSpanFlags(runs[run]));
+            }
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+// Decodes UTF-8 straight out of a ByteBuffer, a memory-mapped file stays out of the heap and
+// only a small window of chars exists at any time. Malformed input becomes U+FFFD, the same
+// as InputStreamReader does.
+final class KnifeByteBufferReader extends Reader {
+    private final ByteBuffer in;
+    private final CharsetDecoder decoder = Charset.forName("UTF-8").newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE)
+            .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+    // Decoded chars not read yet, kept in read mode
+    private final CharBuffer out = CharBuffer.allocate(8192);
+    private boolean flushing = false;
+    private boolean done = false;
+
+    KnifeByteBufferReader(ByteBuffer in) {
+        this.in = in;
+        out.limit(0);
+    }
+
+    @Override
+    public int read(char[] buffer, int offset, int length) {
+        if (length == 0) {
+            return 0;
+        }
+
+        while (!out.hasRemaining()) {
+            if (done) {
+                return -1;
+            }
+
+            decode();
+        }
+
+        int count = Math.min(length, out.remaining());
+        out.get(buffer, offset, count);
+        return count;
+    }
+
+    private void decode() {
+        out.compact();
+
+        if (!flushing) {
+            CoderResult result = decoder.decode(in, out, true);
+            flushing = result.isUnderflow();
+        }
+
+        if (flushing) {
+            done = decoder.flush(out).isUnderflow();
+        }
+
+        out.flip();
+    }
+
+    @Override
+    public void close() {
+        done = true;
+        out.limit(0);
+    }
+}
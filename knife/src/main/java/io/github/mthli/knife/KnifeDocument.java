@@ -0,0 +1,278 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.style.BulletSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ImageSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+import io.github.mthli.knife.spans.AlignmentSpan;
+
+// Text plus a flat table of Knife spans, free of any span object, so it can be built, encoded and
+// decoded on any thread. Spans keep the order they had in the Spanned they were read from.
+public final class KnifeDocument {
+    // Written as is by KnifeBinaryCodec, never renumber them
+    public static final int SPAN_STYLE = 1; // Typeface style
+    public static final int SPAN_UNDERLINE = 2;
+    public static final int SPAN_STRIKETHROUGH = 3;
+    public static final int SPAN_LINK = 4; // String index of the URL
+    public static final int SPAN_IMAGE = 5; // String index of the source
+    public static final int SPAN_TEXT_COLOR = 6; // ARGB color
+    public static final int SPAN_HEADING_TAG = 7; // Float.floatToIntBits() of the relative size
+    public static final int SPAN_TEXT_ALIGN = 8; // AligningDefault value
+    public static final int SPAN_BULLET = 9;
+    public static final int SPAN_QUOTE = 10;
+
+    // Type, start, end and value of every span
+    static final int STRIDE = 4;
+
+    // The builder's text as is, never changed once the document is built
+    private final CharSequence text;
+    private final int[] spans;
+    private final int spanCount;
+    private final String[] strings;
+
+    private KnifeDocument(CharSequence text, int[] spans, int spanCount, String[] strings) {
+        this.text = text;
+        this.spans = spans;
+        this.spanCount = spanCount;
+        this.strings = strings;
+    }
+
+    public static KnifeDocument of(Spanned text) {
+        Builder builder = new Builder(text.toString());
+
+        for (Object span : text.getSpans(0, text.length(), Object.class)) {
+            int type = spanType(span);
+            int start = text.getSpanStart(span);
+            int end = text.getSpanEnd(span);
+
+            if (type == SPAN_LINK || type == SPAN_IMAGE) {
+                builder.addSpan(type, start, end, spanString(span));
+            } else if (type != 0) {
+                builder.addSpan(type, start, end, spanValue(span));
+            }
+        }
+
+        return builder.build();
+    }
+
+    // Knife type of the span, 0 for any other span. Same order as the serializer, KnifeURLSpan
+    // and ImageSpan come before the others.
+    static int spanType(Object span) {
+        if (span instanceof StyleSpan) {
+            return SPAN_STYLE;
+        } else if (span instanceof UnderlineSpan) {
+            return SPAN_UNDERLINE;
+        } else if (span instanceof StrikethroughSpan) {
+            return SPAN_STRIKETHROUGH;
+        } else if (span instanceof URLSpan) {
+            return SPAN_LINK;
+        } else if (span instanceof ImageSpan) {
+            return SPAN_IMAGE;
+        } else if (span instanceof ForegroundColorSpan) {
+            return SPAN_TEXT_COLOR;
+        } else if (span instanceof RelativeSizeSpan) {
+            return SPAN_HEADING_TAG;
+        } else if (span instanceof AlignmentSpan) {
+            return SPAN_TEXT_ALIGN;
+        } else if (span instanceof BulletSpan) {
+            return SPAN_BULLET;
+        } else if (span instanceof QuoteSpan) {
+            return SPAN_QUOTE;
+        } else {
+            return 0;
+        }
+    }
+
+    // Value of a span of any type but SPAN_LINK and SPAN_IMAGE
+    static int spanValue(Object span) {
+        switch (spanType(span)) {
+            case SPAN_STYLE:
+                return ((StyleSpan) span).getStyle();
+            case SPAN_TEXT_COLOR:
+                return ((ForegroundColorSpan) span).getForegroundColor();
+            case SPAN_HEADING_TAG:
+                return Float.floatToIntBits(((RelativeSizeSpan) span).getSizeChange());
+            case SPAN_TEXT_ALIGN:
+                return ((AlignmentSpan) span).getValue();
+            default:
+                return 0;
+        }
+    }
+
+    // Value of a SPAN_LINK or SPAN_IMAGE span
+    static String spanString(Object span) {
+        switch (spanType(span)) {
+            case SPAN_LINK:
+                return ((URLSpan) span).getURL();
+            case SPAN_IMAGE:
+                return ((ImageSpan) span).getSource();
+            default:
+                return null;
+        }
+    }
+
+    public CharSequence getText() {
+        return text;
+    }
+
+    public int getSpanCount() {
+        return spanCount;
+    }
+
+    public int getSpanType(int index) {
+        return spans[index * STRIDE];
+    }
+
+    public int getSpanStart(int index) {
+        return spans[index * STRIDE + 1];
+    }
+
+    public int getSpanEnd(int index) {
+        return spans[index * STRIDE + 2];
+    }
+
+    public int getSpanValue(int index) {
+        return spans[index * STRIDE + 3];
+    }
+
+    // For SPAN_LINK and SPAN_IMAGE
+    public String getSpanString(int index) {
+        return getString(getSpanValue(index));
+    }
+
+    public String getString(int index) {
+        return index >= 0 ? strings[index] : null;
+    }
+
+    int getStringCount() {
+        return strings.length;
+    }
+
+    public SpannableStringBuilder toSpannable(SpanFactory factory) {
+        SpannableStringBuilder builder = new SpannableStringBuilder(text);
+
+        for (int i = 0; i < spanCount; i++) {
+            // SpannableStringBuilder refuses empty SPAN_EXCLUSIVE_EXCLUSIVE spans
+            if (getSpanStart(i) == getSpanEnd(i)) {
+                continue;
+            }
+
+            Object span = factory.create(this, i);
+            if (span != null) {
+                builder.setSpan(span, getSpanStart(i), getSpanEnd(i), Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+
+        return builder;
+    }
+
+    public interface SpanFactory {
+
+        // Returns null to drop the span
+        Object create(KnifeDocument document, int index);
+    }
+
+    public static final class Builder {
+        private final CharSequence text;
+        private int[] spans = new int[STRIDE * 16];
+        private int spanCount = 0;
+        private final Map<String, Integer> lookup = new HashMap<>();
+        private String[] strings = new String[8];
+
+        // The text may still grow while spans are added, as long as they stay inside it. The
+        // document takes it without a copy, so it must not change after build().
+        public Builder(CharSequence text) {
+            this.text = text;
+        }
+
+        public Builder addSpan(int type, int start, int end, int value) {
+            if (start < 0 || start > end || end > text.length()) {
+                throw new IndexOutOfBoundsException("span " + start + "..." + end + " out of 0..." + text.length());
+            }
+
+            if (spans.length < (spanCount + 1) * STRIDE) {
+                spans = Arrays.copyOf(spans, spans.length * 2);
+            }
+
+            int offset = spanCount * STRIDE;
+            spans[offset] = type;
+            spans[offset + 1] = start;
+            spans[offset + 2] = end;
+            spans[offset + 3] = value;
+            spanCount++;
+            return this;
+        }
+
+        public Builder addSpan(int type, int start, int end, String value) {
+            return addSpan(type, start, end, intern(value));
+        }
+
+        public int getSpanCount() {
+            return spanCount;
+        }
+
+        // For spans added before their end was known, they keep their place in the table
+        public Builder setSpanEnd(int index, int end) {
+            int start = spans[index * STRIDE + 1];
+            if (end < start || end > text.length()) {
+                throw new IndexOutOfBoundsException("span " + start + "..." + end + " out of 0..." + text.length());
+            }
+
+            spans[index * STRIDE + 2] = end;
+            return this;
+        }
+
+        // Equal strings share one index, null is -1
+        public int intern(String value) {
+            if (value == null) {
+                return -1;
+            }
+
+            Integer index = lookup.get(value);
+            if (index == null) {
+                index = lookup.size();
+                if (strings.length == index) {
+                    strings = Arrays.copyOf(strings, index * 2);
+                }
+
+                strings[index] = value;
+                lookup.put(value, index);
+            }
+
+            return index;
+        }
+
+        public KnifeDocument build() {
+            return new KnifeDocument(text, Arrays.copyOf(spans, spanCount * STRIDE), spanCount, Arrays.copyOf(strings, lookup.size()));
+        }
+    }
+}
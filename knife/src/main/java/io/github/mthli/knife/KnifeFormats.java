@@ -0,0 +1,448 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+// Format coverage index behind KnifeText.contains().
+//
+// The ranges the spans of a format cover are merged into sorted runs, so whether a range is
+// covered by the format is a single binary search. The runs of a format are built by the first
+// query for it, or for all formats at once by update(), the index sits on the Editable as a
+// watcher to keep them up to date.
+//
+// The runs sit in a gap buffer as the line breaks of KnifeLines do, so an edit only moves the gap
+// to where it happened and cuts the runs it touches. What the edited text or a changed span may
+// cover is kept as one stale range, read again from the spans by the next query. Queries on
+// fresh runs allocate nothing.
+final class KnifeFormats implements TextWatcher, SpanWatcher, NoCopySpan {
+    private final Map<FormatHandler<?>, Runs> runs = new IdentityHashMap<>();
+    private Spannable attached;
+
+    // Between beforeTextChanged() and afterTextChanged()
+    private boolean textChanging = false;
+
+    // Last edit, SpannableStringBuilder reports the spans it moved only after afterTextChanged().
+    // Over once anything queries the index, a span moved later by the same amount is really moved.
+    private boolean editing = false;
+    private int editEnd;
+    private int editDelta;
+
+    void attach(Spannable text) {
+        if (attached == text) {
+            return;
+        }
+
+        if (attached != null) {
+            attached.removeSpan(this);
+        }
+
+        invalidate();
+        textChanging = false;
+        editing = false;
+        attached = text;
+
+        if (text != null) {
+            text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        }
+    }
+
+    // True if every char in [start, end) is covered by a span of the format
+    boolean covers(Spanned text, FormatHandler<?> format, int start, int end) {
+        if (start >= end) {
+            return false;
+        }
+
+        editing = false;
+        Runs formatRuns = text == attached ? runs.get(format) : null;
+        if (formatRuns == null) {
+            formatRuns = new Runs();
+            if (text == attached) {
+                runs.put(format, formatRuns);
+            }
+        }
+
+        if (formatRuns.isOutdated()) {
+            formatRuns.begin(text);
+            for (Object span : text.getSpans(formatRuns.readStart, formatRuns.readEnd, format.getType())) {
+                formatRuns.read(text, format, span);
+            }
+
+            formatRuns.end();
+        }
+
+        return formatRuns.covers(start, end);
+    }
+
+    // Brings the runs of all the formats up to date with a single getSpans() over what any of them
+    // is missing, instead of one per format
+    void update(Spanned text, List<FormatHandler<?>> formats) {
+        if (text != attached) {
+            return;
+        }
+
+        editing = false;
+        int start = Integer.MAX_VALUE;
+        int end = -1;
+        for (FormatHandler<?> format : formats) {
+            Runs formatRuns = runs.get(format);
+            if (formatRuns == null) {
+                formatRuns = new Runs();
+                runs.put(format, formatRuns);
+            }
+
+            if (formatRuns.isOutdated()) {
+                formatRuns.begin(text);
+                start = Math.min(start, formatRuns.readStart);
+                end = Math.max(end, formatRuns.readEnd);
+            }
+        }
+
+        if (start > end) {
+            return;
+        }
+
+        Object[] spans = text.getSpans(start, end, Object.class);
+        for (FormatHandler<?> format : formats) {
+            Runs formatRuns = runs.get(format);
+            if (!formatRuns.reading) {
+                continue;
+            }
+
+            for (Object span : spans) {
+                formatRuns.read(text, format, span);
+            }
+
+            formatRuns.end();
+        }
+    }
+
+    private void invalidate() {
+        for (Runs formatRuns : runs.values()) {
+            formatRuns.valid = false;
+        }
+    }
+
+    // Spans changed while the text is changing may be told in either the old or the new offsets,
+    // they are taken as new ones once the runs moved with the edit
+    private void invalidate(Object span, int start, int end) {
+        for (Map.Entry<FormatHandler<?>, Runs> entry : runs.entrySet()) {
+            Runs formatRuns = entry.getValue();
+            if (!formatRuns.valid || !entry.getKey().getType().isInstance(span)) {
+                continue;
+            }
+
+            if (textChanging) {
+                formatRuns.defer(start, end);
+            } else {
+                formatRuns.invalidate(start, end);
+            }
+        }
+    }
+
+    private boolean isShiftedByEdit(int ostart, int oend, int nstart, int nend) {
+        return editing && isShiftedByEdit(ostart, nstart) && isShiftedByEdit(oend, nend);
+    }
+
+    private boolean isShiftedByEdit(int old, int now) {
+        return now > editEnd ? old == now - editDelta : old == now;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+        textChanging = true;
+        editing = false;
+    }
+
+    @Override
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+        for (Runs formatRuns : runs.values()) {
+            if (formatRuns.valid) {
+                formatRuns.edit(start, before, count);
+            }
+        }
+
+        editEnd = start + count;
+        editDelta = count - before;
+    }
+
+    @Override
+    public void afterTextChanged(Editable text) {
+        textChanging = false;
+        editing = true;
+
+        for (Runs formatRuns : runs.values()) {
+            if (formatRuns.valid) {
+                formatRuns.undefer();
+            }
+        }
+    }
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+        invalidate(what, start, end);
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        invalidate(what, start, end);
+    }
+
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+        if (textChanging || !isShiftedByEdit(ostart, oend, nstart, nend)) {
+            invalidate(what, Math.min(ostart, nstart), Math.max(oend, nend));
+        }
+    }
+
+    // Disjoint covered ranges sorted by start, touching ranges are merged too. The ones before the
+    // gap are kept from the start of the text and the ones after it from the end.
+    private static final class Runs {
+        private int[] starts = new int[16];
+        private int[] ends = new int[16];
+        private int gapStart = 0;
+        private int gapEnd = starts.length;
+        private int length = 0;
+        private boolean valid = false;
+
+        // [staleStart, staleEnd) may be covered otherwise than the runs say
+        private boolean stale = false;
+        private int staleStart;
+        private int staleEnd;
+
+        // Spans changed during the edit, see KnifeFormats.invalidate()
+        private boolean deferred = false;
+        private int deferredStart;
+        private int deferredEnd;
+
+        // Between begin() and end(), the spans in [readStart, readEnd) are read into ranges
+        private boolean reading = false;
+        private int readStart;
+        private int readEnd;
+        private int readAfter;
+        private long[] ranges = new long[16];
+        private int rangeCount = 0;
+
+        private boolean isOutdated() {
+            return !valid || stale;
+        }
+
+        // Takes out the runs of what is to be read again, all of the text if they were never built
+        private void begin(Spanned text) {
+            if (!valid) {
+                gapStart = 0;
+                gapEnd = starts.length;
+                length = text.length();
+                deferred = false;
+                readStart = 0;
+                readEnd = length;
+                readAfter = -1;
+            } else {
+                readStart = staleStart;
+                readEnd = staleEnd;
+                readAfter = cut(staleStart, staleEnd, 0);
+            }
+
+            stale = false;
+            reading = true;
+            rangeCount = 0;
+        }
+
+        private <T> void read(Spanned text, FormatHandler<T> format, Object span) {
+            if (!format.getType().isInstance(span) || !format.matches(format.getType().cast(span))) {
+                return;
+            }
+
+            int spanStart = Math.max(text.getSpanStart(span), readStart);
+            int spanEnd = Math.min(text.getSpanEnd(span), readEnd);
+            if (spanStart >= spanEnd) {
+                return;
+            }
+
+            if (rangeCount == ranges.length) {
+                ranges = Arrays.copyOf(ranges, rangeCount * 2);
+            }
+
+            ranges[rangeCount++] = (long) spanStart << 32 | spanEnd;
+        }
+
+        // Puts the coverage read back at the gap, which begin() left right there
+        private void end() {
+            Arrays.sort(ranges, 0, rangeCount);
+            for (int i = 0; i < rangeCount; i++) {
+                add((int) (ranges[i] >>> 32), (int) ranges[i]);
+            }
+
+            if (readAfter >= 0) {
+                add(readEnd, readAfter);
+            }
+
+            reading = false;
+            valid = true;
+        }
+
+        // Text in [start, start + before) was replaced by count chars
+        private void edit(int start, int before, int count) {
+            int end = start + before;
+            int after = cut(start, end, count - before);
+            if (after >= 0) {
+                add(start + count, after);
+            }
+
+            if (stale) {
+                staleStart = Math.min(staleStart, start);
+                staleEnd = staleEnd > end ? staleEnd + count - before : start + count;
+            } else {
+                stale = true;
+                staleStart = start;
+                staleEnd = start + count;
+            }
+        }
+
+        private void defer(int start, int end) {
+            deferredStart = deferred ? Math.min(deferredStart, start) : start;
+            deferredEnd = deferred ? Math.max(deferredEnd, end) : end;
+            deferred = true;
+        }
+
+        private void undefer() {
+            if (deferred) {
+                deferred = false;
+                invalidate(deferredStart, deferredEnd);
+            }
+        }
+
+        private void invalidate(int start, int end) {
+            start = Math.max(0, Math.min(start, length));
+            end = Math.max(start, Math.min(end, length));
+
+            if (stale) {
+                staleStart = Math.min(staleStart, start);
+                staleEnd = Math.max(staleEnd, end);
+            } else {
+                stale = true;
+                staleStart = start;
+                staleEnd = end;
+            }
+        }
+
+        // Takes the runs touching [start, end) out and puts back what they cover before it, the text
+        // after it moves by delta. Returns where the part they cover after it ends, now at
+        // end + delta, or -1 if there is none. The gap is left in between.
+        private int cut(int start, int end, int delta) {
+            moveGap(start);
+
+            int before = -1;
+            int after = -1;
+            while (gapEnd < starts.length && length - starts[gapEnd] <= end) {
+                before = before < 0 ? Math.min(length - starts[gapEnd], start) : before;
+                after = Math.max(length - ends[gapEnd], end);
+                gapEnd++;
+            }
+
+            length += delta;
+
+            if (before >= 0 && before < start) {
+                add(before, start);
+            }
+
+            return after > end ? after + delta : -1;
+        }
+
+        // Appends a run at the gap, merged with the one before if they touch
+        private void add(int start, int end) {
+            if (gapStart > 0 && start <= ends[gapStart - 1]) {
+                ends[gapStart - 1] = Math.max(ends[gapStart - 1], end);
+                return;
+            }
+
+            if (gapStart == gapEnd) {
+                int tail = starts.length - gapEnd;
+                int[] grownStarts = new int[starts.length * 2];
+                int[] grownEnds = new int[ends.length * 2];
+                System.arraycopy(starts, 0, grownStarts, 0, gapStart);
+                System.arraycopy(ends, 0, grownEnds, 0, gapStart);
+                System.arraycopy(starts, gapEnd, grownStarts, grownStarts.length - tail, tail);
+                System.arraycopy(ends, gapEnd, grownEnds, grownEnds.length - tail, tail);
+                gapEnd = grownStarts.length - tail;
+                starts = grownStarts;
+                ends = grownEnds;
+            }
+
+            starts[gapStart] = start;
+            ends[gapStart] = end;
+            gapStart++;
+        }
+
+        // Puts the gap right before the first run ending at or after offset
+        private void moveGap(int offset) {
+            while (gapStart > 0 && ends[gapStart - 1] >= offset) {
+                gapStart--;
+                gapEnd--;
+                starts[gapEnd] = length - starts[gapStart];
+                ends[gapEnd] = length - ends[gapStart];
+            }
+
+            while (gapEnd < starts.length && length - ends[gapEnd] < offset) {
+                starts[gapStart] = length - starts[gapEnd];
+                ends[gapStart] = length - ends[gapEnd];
+                gapStart++;
+                gapEnd++;
+            }
+        }
+
+        private int getCount() {
+            return gapStart + starts.length - gapEnd;
+        }
+
+        private int getStart(int index) {
+            return index < gapStart ? starts[index] : length - starts[index + gapEnd - gapStart];
+        }
+
+        private int getEnd(int index) {
+            return index < gapStart ? ends[index] : length - ends[index + gapEnd - gapStart];
+        }
+
+        private boolean covers(int start, int end) {
+            // Last run starting at or before start
+            int low = 0;
+            int high = getCount() - 1;
+            int found = -1;
+            while (low <= high) {
+                int middle = (low + high) >>> 1;
+                if (getStart(middle) <= start) {
+                    found = middle;
+                    low = middle + 1;
+                } else {
+                    high = middle - 1;
+                }
+            }
+
+            return found >= 0 && getEnd(found) >= end;
+        }
+    }
+}
@@ -0,0 +1,1400 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.graphics.Rect;
+import android.os.SystemClock;
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.CharacterStyle;
+import android.text.style.ImageSpan;
+import android.text.style.ParagraphStyle;
+import android.text.style.SuggestionSpan;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import io.github.mthli.knife.spans.ImageCustomSpan;
+import io.github.mthli.knife.type.MediaImageType;
+
+// Delta undo history behind KnifeText.undo() and redo().
+//
+// Every edit keeps the range it replaced, the text that went out and the text that came in, each
+// with the spans lying inside it, and where the spans reaching across the range started and ended
+// on either side. Undo and redo put the range back in place, so both cost the size of the edit
+// and not the size of the document.
+//
+// Formatting never reaches a TextWatcher, so the history also sits on the Editable as a span
+// watcher and journals every formatting span added, removed or moved outside of an edit. The
+// changes made between beginGroup() and endGroup() are undone as one step.
+//
+// An edit continuing the last one, typing on at its end, deleting on from it or an input method
+// rewriting its composing text, is merged into it while it is inside the group interval or
+// still inside the same word. A word takes the whitespace typed after it along.
+//
+// With a byte budget, the steps farthest from the cursor go deflated to a KnifeHistoryLog once
+// the estimated heap size of all steps is over it, and are read back when undo or redo reach
+// them. Spilled spans are kept as their KnifeDocument type and value. Read back, they are
+// matched to the live spans where the text still holds them and built anew elsewhere.
+//
+// save() writes the steps to a file the same way, restore() reads back only where each step is
+// and leaves the steps themselves in the file until undo or redo reach them.
+//
+// Images are recorded by their source, type and size only, a deleted image would otherwise keep
+// its bitmap on the heap for as long as its step is kept. The ImageLoader builds them anew when
+// undo or redo put them back.
+final class KnifeHistory implements SpanWatcher, NoCopySpan {
+    private static final int MAGIC = 0x4b4e4948; // KNIH
+    private static final int VERSION = 1;
+    private static final int HEADER = 32;
+
+    private final List<Step> steps = new ArrayList<>();
+    private final int size;
+    private final long groupInterval;
+    private final boolean groupWords;
+    private Spannable attached;
+
+    // Byte budget, 0 keeps every step in memory
+    private long maxBytes = 0;
+    private long bytes = 0;
+    private KnifeHistoryLog log;
+    private KnifeDocument.SpanFactory spans;
+    private ImageLoader images;
+
+    // Steps before the cursor are applied, the ones from the cursor on can be redone
+    private int cursor = 0;
+
+    // Between beforeTextChanged() and afterTextChanged()
+    private Edit pending;
+
+    // Only the edit committed last can be continued, not one brought back by undo or redo
+    private boolean groupable = false;
+
+    // Open between beginGroup() and endGroup()
+    private Step group;
+    private int groupDepth = 0;
+
+    // Span changes made outside of a group join each other until anything else is recorded
+    private boolean looseSpans = false;
+
+    // Undo and redo change spans themselves
+    private boolean applying = false;
+
+    // Last edit, SpannableStringBuilder reports the spans it moved or took in only after
+    // afterTextChanged(), see KnifeHtmlCache
+    private boolean textChanging = false;
+    private boolean editing = false;
+    private int editEnd;
+    private int editDelta;
+    private Spanned editInserted;
+
+    KnifeHistory(int size, long groupInterval, boolean groupWords) {
+        this.size = size;
+        this.groupInterval = groupInterval;
+        this.groupWords = groupWords;
+    }
+
+    // Spans read back from the log are built by the factory
+    void spill(File directory, long maxBytes, KnifeDocument.SpanFactory spans) {
+        this.maxBytes = maxBytes;
+        this.log = new KnifeHistoryLog(directory);
+        this.spans = spans;
+        trim();
+    }
+
+    void setImageLoader(ImageLoader images) {
+        this.images = images;
+    }
+
+    void attach(Spannable text) {
+        if (attached == text) {
+            return;
+        }
+
+        if (attached != null) {
+            attached.removeSpan(this);
+        }
+
+        textChanging = false;
+        editing = false;
+        attached = text;
+
+        if (text != null) {
+            text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE);
+        }
+    }
+
+    void beforeTextChanged(CharSequence text, int start, int count) {
+        // A watcher edited the text from its own afterTextChanged(), ours did not run yet
+        if (pending != null) {
+            commit();
+        }
+
+        textChanging = true;
+        editing = false;
+        pending = new Edit(start, SystemClock.uptimeMillis());
+        pending.removed = copy(text, start, start + count, pending.removedBounds);
+    }
+
+    void onTextChanged(CharSequence text, int start, int count) {
+        if (pending != null && pending.start == start) {
+            pending.inserted = copy(text, start, start + count, pending.insertedBounds);
+            editEnd = start + count;
+            editDelta = count - pending.removed.length();
+            editInserted = pending.inserted;
+        }
+    }
+
+    void afterTextChanged() {
+        textChanging = false;
+        editing = pending != null && pending.inserted != null;
+
+        if (pending != null) {
+            commit();
+        }
+    }
+
+    // Nests, only the outermost endGroup() records the step
+    void beginGroup() {
+        if (groupDepth++ == 0) {
+            group = new Step();
+            editing = false;
+        }
+    }
+
+    void endGroup() {
+        if (--groupDepth > 0) {
+            return;
+        }
+
+        Step step = group;
+        group = null;
+        looseSpans = false;
+        groupable = false;
+
+        if (!step.changes.isEmpty()) {
+            push(step);
+            trim();
+        }
+    }
+
+    boolean canUndo() {
+        return cursor > 0;
+    }
+
+    boolean canRedo() {
+        return cursor < steps.size();
+    }
+
+    // Returns where the cursor goes, right after the text the first edit of the step put back,
+    // or -1 for a step that only changed formatting
+    int undo(Editable text) {
+        if (!load(cursor - 1)) {
+            drop(0, cursor);
+            return -1;
+        }
+
+        Step step = steps.get(--cursor);
+        int selection = -1;
+        applying = true;
+        try {
+            for (int i = step.changes.size() - 1; i >= 0; i--) {
+                Change change = step.changes.get(i);
+                if (step.refs != null) {
+                    change.bind(text, true, step.refs, spans);
+                }
+
+                int at = change.undo(text, images);
+                selection = at >= 0 ? at : selection;
+            }
+        } finally {
+            applying = false;
+        }
+
+        step.refs = null;
+        groupable = false;
+        looseSpans = false;
+        editing = false;
+        return selection;
+    }
+
+    // Same as undo(), after the text the last edit of the step put in
+    int redo(Editable text) {
+        if (!load(cursor)) {
+            drop(cursor, steps.size());
+            return -1;
+        }
+
+        Step step = steps.get(cursor++);
+        int selection = -1;
+        applying = true;
+        try {
+            for (Change change : step.changes) {
+                if (step.refs != null) {
+                    change.bind(text, false, step.refs, spans);
+                }
+
+                int at = change.redo(text, images);
+                selection = at >= 0 ? at : selection;
+            }
+        } finally {
+            applying = false;
+        }
+
+        step.refs = null;
+        groupable = false;
+        looseSpans = false;
+        editing = false;
+        return selection;
+    }
+
+    // Written aside and renamed over the file, a history restored from it goes on reading the
+    // old one
+    void save(File file, Spanned text) throws IOException {
+        File temp = new File(file.getPath() + ".tmp");
+        RandomAccessFile out = new RandomAccessFile(temp, "rw");
+        try {
+            out.setLength(0);
+            out.seek(HEADER);
+
+            long[] offsets = new long[steps.size()];
+            int[] lengths = new int[steps.size()];
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                byte[] record = step.changes != null ? step.encode() : step.log.read(step.offset, step.length);
+                offsets[i] = out.getFilePointer();
+                lengths[i] = record.length;
+                out.write(record);
+            }
+
+            long index = out.getFilePointer();
+            for (int i = 0; i < steps.size(); i++) {
+                out.writeLong(offsets[i]);
+                out.writeInt(lengths[i]);
+            }
+
+            out.seek(0);
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(text.length());
+            out.writeInt(text.toString().hashCode());
+            out.writeInt(cursor);
+            out.writeInt(steps.size());
+            out.writeLong(index);
+        } catch (IOException e) {
+            out.close();
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw e;
+        }
+
+        out.close();
+        if (!temp.renameTo(file)) {
+            //noinspection ResultOfMethodCallIgnored
+            temp.delete();
+            throw new IOException("Can not write " + file);
+        }
+    }
+
+    // Replaces the steps by the ones saved for the same text, false if the file was saved for
+    // another one. Only the index is read, so this takes as long for one step as for a hundred.
+    boolean restore(File file, Spanned text, KnifeDocument.SpanFactory spans) throws IOException {
+        KnifeHistoryLog saved = KnifeHistoryLog.open(file);
+        try {
+            DataInputStream header = new DataInputStream(new ByteArrayInputStream(saved.read(0, HEADER)));
+            if (header.readInt() != MAGIC || header.readInt() != VERSION) {
+                throw new IOException("Not a saved history");
+            }
+
+            if (header.readInt() != text.length() || header.readInt() != text.toString().hashCode()) {
+                saved.close();
+                return false;
+            }
+
+            int savedCursor = header.readInt();
+            int count = header.readInt();
+            long index = header.readLong();
+            if (count < 0 || savedCursor < 0 || savedCursor > count) {
+                throw new IOException("Corrupt history log");
+            }
+
+            // Oldest first, only as many as this history keeps
+            int first = Math.max(0, count - size);
+            DataInputStream entries = new DataInputStream(new ByteArrayInputStream(saved.read(index + 12L * first, 12 * (count - first))));
+
+            clear();
+            this.spans = spans;
+            for (int i = first; i < count; i++) {
+                Step step = new Step();
+                step.changes = null;
+                step.log = saved;
+                step.offset = entries.readLong();
+                step.length = entries.readInt();
+                steps.add(step);
+            }
+
+            saved.retain(steps.size());
+            if (steps.isEmpty()) {
+                saved.close();
+            }
+
+            cursor = Math.max(0, savedCursor - first);
+            return true;
+        } catch (IOException e) {
+            saved.close();
+            throw e;
+        }
+    }
+
+    void clear() {
+        drop(0, steps.size());
+        cursor = 0;
+        bytes = 0;
+        pending = null;
+        groupable = false;
+        looseSpans = false;
+
+        if (log != null) {
+            log.close();
+        }
+    }
+
+    private void commit() {
+        Edit edit = pending;
+        pending = null;
+
+        // Replaced by the same characters, as an input method does when it commits its composing
+        if (edit.inserted == null || TextUtils.equals(edit.removed, edit.inserted)) {
+            return;
+        }
+
+        looseSpans = false;
+
+        if (group != null) {
+            Change last = group.changes.isEmpty() ? null : group.changes.get(group.changes.size() - 1);
+            if (!(last instanceof Edit) || !((Edit) last).merge(edit)) {
+                group.changes.add(edit);
+            }
+
+            return;
+        }
+
+        Edit last = cursor > 0 && cursor == steps.size() ? steps.get(cursor - 1).edit() : null;
+        if (last != null && groupable && groups(last, edit) && last.merge(edit)) {
+            measure(steps.get(cursor - 1));
+            trim();
+            return;
+        }
+
+        push(new Step(edit));
+        groupable = true;
+        trim();
+    }
+
+    private void record(SpanChange change) {
+        if (group != null) {
+            group.changes.add(change);
+            return;
+        }
+
+        // Spans set right after an edit belong to it, as do the ones set after those
+        if ((looseSpans || editing && groupable) && cursor > 0 && cursor == steps.size() && steps.get(cursor - 1).changes != null) {
+            steps.get(cursor - 1).changes.add(change);
+            measure(steps.get(cursor - 1));
+        } else {
+            push(new Step(change));
+        }
+
+        trim();
+
+        looseSpans = true;
+        groupable = false;
+    }
+
+    private void push(Step step) {
+        // Whatever was undone is gone once the text takes another way
+        drop(cursor, steps.size());
+
+        if (steps.size() >= size) {
+            drop(0, 1);
+        }
+
+        steps.add(step);
+        cursor = steps.size();
+        measure(step);
+    }
+
+    // Removes the steps in [from, to), the cursor stays on the same step if it can
+    private void drop(int from, int to) {
+        for (int i = from; i < to; i++) {
+            Step step = steps.get(i);
+            if (step.changes == null) {
+                step.log.release(step.length);
+            } else {
+                bytes -= step.bytes;
+            }
+        }
+
+        steps.subList(from, to).clear();
+        if (cursor >= to) {
+            cursor -= to - from;
+        } else if (cursor > from) {
+            cursor = from;
+        }
+    }
+
+    private void measure(Step step) {
+        bytes -= step.bytes;
+        step.bytes = 0;
+        for (Change change : step.changes) {
+            step.bytes += change.measure();
+        }
+
+        bytes += step.bytes;
+    }
+
+    // Spills the steps farthest from the cursor until the rest fits in the budget. The steps
+    // right before and after the cursor stay, they are the next to undo and redo.
+    private void trim() {
+        while (maxBytes > 0 && bytes > maxBytes) {
+            int victim = -1;
+            for (int i = 0; i < steps.size(); i++) {
+                if (steps.get(i).changes == null || i == cursor - 1 || i == cursor) {
+                    continue;
+                }
+
+                if (victim < 0 || Math.abs(i - cursor) > Math.abs(victim - cursor)) {
+                    victim = i;
+                }
+            }
+
+            if (victim < 0) {
+                return;
+            }
+
+            Step step = steps.get(victim);
+            try {
+                byte[] record = step.encode();
+                step.offset = log.append(record);
+                step.log = log;
+                step.length = record.length;
+                step.changes = null;
+                step.refs = null;
+                bytes -= step.bytes;
+                step.bytes = 0;
+
+                if (log.isWasteful()) {
+                    compact();
+                }
+            } catch (IOException e) {
+                // Undo can not go past a step that is lost
+                if (victim < cursor) {
+                    drop(0, victim + 1);
+                } else {
+                    drop(victim, steps.size());
+                }
+            }
+        }
+    }
+
+    // Copies the records of the spilled steps to a new log, the old one goes with its dead records.
+    // Left as is if the copy fails, it is only bigger than it needs to be.
+    private void compact() {
+        KnifeHistoryLog compacted = log.renew();
+        long[] offsets = new long[steps.size()];
+        try {
+            for (int i = 0; i < steps.size(); i++) {
+                Step step = steps.get(i);
+                if (step.changes == null && step.log == log) {
+                    offsets[i] = compacted.append(log.read(step.offset, step.length));
+                }
+            }
+        } catch (IOException e) {
+            compacted.close();
+            return;
+        }
+
+        for (int i = 0; i < steps.size(); i++) {
+            Step step = steps.get(i);
+            if (step.changes == null && step.log == log) {
+                step.offset = offsets[i];
+                step.log = compacted;
+            }
+        }
+
+        log.close();
+        log = compacted;
+    }
+
+    // Reads a spilled step back, false if it is lost
+    private boolean load(int index) {
+        Step step = steps.get(index);
+        if (step.changes != null) {
+            return true;
+        }
+
+        try {
+            step.decode(step.log.read(step.offset, step.length));
+        } catch (IOException e) {
+            return false;
+        }
+
+        step.log.release(step.length);
+        step.log = null;
+        measure(step);
+        trim();
+        return true;
+    }
+
+    private boolean groups(Edit last, Edit next) {
+        if (groupInterval > 0 && next.time - last.time <= groupInterval) {
+            return true;
+        }
+
+        if (!groupWords) {
+            return false;
+        }
+
+        // Typing a word char after anything else starts a new word
+        if (next.inserted.length() > 0) {
+            return isWord(next.inserted) && (last.inserted.length() == 0 || isWordChar(last.inserted.charAt(last.inserted.length() - 1)))
+                    || isSpace(next.inserted) && last.inserted.length() > 0;
+        }
+
+        // Deleting stays in the word it started in
+        return isWord(next.removed) && last.inserted.length() == 0 && last.removed.length() > 0
+                && isWordChar(last.removed.charAt(next.start < last.start ? 0 : last.removed.length() - 1));
+    }
+
+    private static boolean isWord(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (!isWordChar(text.charAt(i))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isSpace(CharSequence text) {
+        for (int i = 0; i < text.length(); i++) {
+            if (text.charAt(i) != ' ' && text.charAt(i) != '\t') {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    private static boolean isWordChar(char c) {
+        return Character.isLetterOrDigit(c) || c == '\'' || c == '_';
+    }
+
+    // Only formatting is recorded, selection, composing, spell check and watcher spans belong to
+    // the live text
+    private static boolean isFormat(Object span, int flags) {
+        return (span instanceof CharacterStyle || span instanceof ParagraphStyle)
+                && !(span instanceof SuggestionSpan)
+                && (flags & Spanned.SPAN_COMPOSING) == 0;
+    }
+
+    // Images only come and go with the text they sit on, so the edits record them
+    private static boolean isSpanFormat(Object span, int flags) {
+        return isFormat(span, flags) && !(span instanceof ImageSpan);
+    }
+
+    // Spans read back from the log stand in for live spans until the step is undone or redone
+    private static int typeOf(Object span) {
+        if (span instanceof Ref) {
+            return ((Ref) span).type;
+        }
+
+        return span instanceof Image ? KnifeDocument.SPAN_IMAGE : KnifeDocument.spanType(span);
+    }
+
+    // Matches a span read back from the log to the live one at [start, end], or builds it anew
+    private static Object resolve(Spanned text, Object span, int start, int end, Object[] table, KnifeDocument.SpanFactory spans) {
+        if (!(span instanceof Ref)) {
+            return span;
+        }
+
+        Ref ref = (Ref) span;
+        if (table[ref.id] != null) {
+            return table[ref.id];
+        }
+
+        if (text != null && start >= 0) {
+            for (Object live : text.getSpans(start, end, Object.class)) {
+                if (text.getSpanStart(live) == start && text.getSpanEnd(live) == end && ref.matches(live) && !contains(table, live)) {
+                    table[ref.id] = live;
+                    return live;
+                }
+            }
+        }
+
+        KnifeDocument.Builder builder = new KnifeDocument.Builder("");
+        if (ref.type == KnifeDocument.SPAN_LINK || ref.type == KnifeDocument.SPAN_IMAGE) {
+            builder.addSpan(ref.type, 0, 0, ref.string);
+        } else {
+            builder.addSpan(ref.type, 0, 0, ref.value);
+        }
+
+        table[ref.id] = spans != null ? spans.create(builder.build(), 0) : null;
+        return table[ref.id];
+    }
+
+    private static boolean contains(Object[] table, Object span) {
+        for (Object bound : table) {
+            if (bound == span) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    // Span moves reported right after an edit, the old offsets inside the edit are not known
+    private boolean isShiftedByEdit(int ostart, int oend, int nstart, int nend) {
+        return editing && isShiftedByEdit(ostart, nstart) && isShiftedByEdit(oend, nend);
+    }
+
+    private boolean isShiftedByEdit(int old, int now) {
+        return now > editEnd ? old == now - editDelta : old == now;
+    }
+
+    private boolean isRecording(Spannable text, Object what) {
+        return !applying && !textChanging && text == attached && isSpanFormat(what, text.getSpanFlags(what));
+    }
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+        if (!isRecording(text, what)) {
+            return;
+        }
+
+        // Came in with the inserted text
+        if (editing && editInserted.getSpanStart(what) >= 0) {
+            return;
+        }
+
+        record(new SpanChange(what, -1, -1, 0, start, end, text.getSpanFlags(what)));
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        // The flags are gone with the span, Knife sets all of its spans exclusive
+        if (!applying && !textChanging && text == attached && isSpanFormat(what, 0)) {
+            record(new SpanChange(what, start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE, -1, -1, 0));
+        }
+    }
+
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+        if (!isRecording(text, what) || isShiftedByEdit(ostart, oend, nstart, nend)) {
+            return;
+        }
+
+        int flags = text.getSpanFlags(what);
+        record(new SpanChange(what, ostart, oend, flags, nstart, nend, flags));
+    }
+
+    // Copies the range with the spans lying inside it, the spans reaching across it go to bounds.
+    // Images go in as their Image, an image can not reach across the range.
+    //
+    // The spans only touching the range go to bounds too. Where they are on the live side is all a
+    // step read back from the log has to match them by, when the other side moves them across.
+    private static SpannableStringBuilder copy(CharSequence text, int start, int end, Bounds bounds) {
+        SpannableStringBuilder copy = new SpannableStringBuilder(TextUtils.substring(text, start, end));
+        if (!(text instanceof Spanned)) {
+            return copy;
+        }
+
+        Spanned spanned = (Spanned) text;
+        for (Object span : spanned.getSpans(Math.max(0, start - 1), Math.min(text.length(), end + 1), Object.class)) {
+            int flags = spanned.getSpanFlags(span);
+            int spanStart = spanned.getSpanStart(span);
+            int spanEnd = spanned.getSpanEnd(span);
+            if (!isFormat(span, flags) || spanEnd < start || spanStart > end) {
+                continue;
+            }
+
+            if (span instanceof ImageSpan) {
+                if (spanStart >= start && spanEnd <= end && spanStart < spanEnd) {
+                    copy.setSpan(Image.of((ImageSpan) span), spanStart - start, spanEnd - start, flags);
+                }
+            } else if (spanStart >= start && spanEnd <= end && spanStart < spanEnd) {
+                copy.setSpan(span, spanStart - start, spanEnd - start, flags);
+            } else {
+                bounds.add(span, spanStart, spanEnd, flags);
+            }
+        }
+
+        return copy;
+    }
+
+    // One undo step, its changes are undone last to first
+    private static final class Step {
+        // Null while spilled to the log or left in a saved history
+        private List<Change> changes = new ArrayList<>(1);
+        private long bytes = 0;
+        private KnifeHistoryLog log;
+        private long offset;
+        private int length;
+
+        // Live spans the refs of a step read back from the log stand for, by ref id
+        private Object[] refs;
+
+        private Step() {
+        }
+
+        private Step(Change change) {
+            changes.add(change);
+        }
+
+        // The edit alone in this step, typing can only go on in such a step
+        private Edit edit() {
+            return changes != null && changes.size() == 1 && changes.get(0) instanceof Edit ? (Edit) changes.get(0) : null;
+        }
+
+        // Spans are written once each as their KnifeDocument type and value, any other span is
+        // left out
+        private byte[] encode() throws IOException {
+            Map<Object, Integer> ids = new IdentityHashMap<>();
+            List<Object> table = new ArrayList<>();
+            for (Change change : changes) {
+                change.collect(ids, table);
+            }
+
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(new DeflaterOutputStream(record));
+
+            out.writeInt(table.size());
+            for (Object span : table) {
+                Ref.write(out, span);
+            }
+
+            out.writeInt(changes.size());
+            for (Change change : changes) {
+                change.write(out, ids);
+            }
+
+            out.close();
+            return record.toByteArray();
+        }
+
+        private void decode(byte[] record) throws IOException {
+            DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(record)));
+            try {
+                Object[] table = new Object[in.readInt()];
+                for (int i = 0; i < table.length; i++) {
+                    table[i] = Ref.read(in, i);
+                }
+
+                int count = in.readInt();
+                List<Change> read = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    read.add(in.readByte() == Edit.KIND ? Edit.read(in, table) : SpanChange.read(in, table));
+                }
+
+                changes = read;
+                refs = new Object[table.length];
+            } finally {
+                in.close();
+            }
+        }
+    }
+
+    private abstract static class Change {
+        // Both return where the change leaves the cursor, -1 for none. The images the change puts
+        // back are built by the loader, left out without one.
+        abstract int undo(Editable text, ImageLoader images);
+
+        abstract int redo(Editable text, ImageLoader images);
+
+        // Rough heap size in bytes
+        abstract long measure();
+
+        // Swaps the refs for spans right before the change is undone or redone, the text is in
+        // the state right after or before it
+        abstract void bind(Spanned text, boolean undo, Object[] table, KnifeDocument.SpanFactory spans);
+
+        abstract void collect(Map<Object, Integer> ids, List<Object> table);
+
+        abstract void write(DataOutputStream out, Map<Object, Integer> ids) throws IOException;
+
+        static void collect(Object span, Map<Object, Integer> ids, List<Object> table) {
+            if (span != null && typeOf(span) != 0 && !ids.containsKey(span)) {
+                ids.put(span, table.size());
+                table.add(span);
+            }
+        }
+
+        static int id(Object span, Map<Object, Integer> ids) {
+            Integer id = span != null ? ids.get(span) : null;
+            return id != null ? id : -1;
+        }
+
+        static void writeString(DataOutputStream out, String string) throws IOException {
+            out.writeInt(string.length());
+            out.writeChars(string);
+        }
+
+        static String readString(DataInputStream in) throws IOException {
+            int length = in.readInt();
+            if (length < 0) {
+                throw new IOException("Corrupt history log");
+            }
+
+            char[] chars = new char[length];
+            for (int i = 0; i < length; i++) {
+                chars[i] = in.readChar();
+            }
+
+            return new String(chars);
+        }
+
+        static void writeText(DataOutputStream out, Spanned text, Map<Object, Integer> ids) throws IOException {
+            writeString(out, text.toString());
+
+            Object[] spans = text.getSpans(0, text.length(), Object.class);
+            int count = 0;
+            for (Object span : spans) {
+                if (id(span, ids) >= 0) {
+                    count++;
+                }
+            }
+
+            out.writeInt(count);
+            for (Object span : spans) {
+                if (id(span, ids) >= 0) {
+                    out.writeInt(id(span, ids));
+                    out.writeInt(text.getSpanStart(span));
+                    out.writeInt(text.getSpanEnd(span));
+                    out.writeInt(text.getSpanFlags(span));
+                }
+            }
+        }
+
+        static SpannableStringBuilder readText(DataInputStream in, Object[] table) throws IOException {
+            SpannableStringBuilder text = new SpannableStringBuilder(readString(in));
+
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                Object ref = table[in.readInt()];
+                int start = in.readInt();
+                int end = in.readInt();
+                int flags = in.readInt();
+
+                if (start < 0 || start > end || end > text.length()) {
+                    throw new IOException("Corrupt history log");
+                }
+
+                text.setSpan(ref, start, end, flags);
+            }
+
+            return text;
+        }
+
+        // The text holds the copy at start, or null to build its spans anew
+        static void bindText(SpannableStringBuilder copy, Spanned text, int start, Object[] table, KnifeDocument.SpanFactory spans) {
+            for (Ref ref : copy.getSpans(0, copy.length(), Ref.class)) {
+                int spanStart = copy.getSpanStart(ref);
+                int spanEnd = copy.getSpanEnd(ref);
+                int flags = copy.getSpanFlags(ref);
+                Object span = resolve(text, ref, start + spanStart, start + spanEnd, table, spans);
+
+                copy.removeSpan(ref);
+                if (span != null) {
+                    copy.setSpan(span, spanStart, spanEnd, flags);
+                }
+            }
+        }
+    }
+
+    private static final class Edit extends Change {
+        private static final byte KIND = 0;
+
+        private int start;
+        private long time;
+        private SpannableStringBuilder removed;
+        private SpannableStringBuilder inserted;
+        private final Bounds removedBounds = new Bounds();
+        private final Bounds insertedBounds = new Bounds();
+
+        private Edit(int start, long time) {
+            this.start = start;
+            this.time = time;
+        }
+
+        @Override
+        int undo(Editable text, ImageLoader images) {
+            return apply(text, start, inserted, removed, removedBounds, images);
+        }
+
+        @Override
+        int redo(Editable text, ImageLoader images) {
+            return apply(text, start, removed, inserted, insertedBounds, images);
+        }
+
+        @Override
+        long measure() {
+            int spanCount = removed.getSpans(0, removed.length(), Object.class).length
+                    + inserted.getSpans(0, inserted.length(), Object.class).length;
+            return 64 + 2L * (removed.length() + inserted.length()) + 32L * spanCount
+                    + 24L * (removedBounds.count + insertedBounds.count);
+        }
+
+        // The live side is bound first, so the other side reuses the spans found there
+        @Override
+        void bind(Spanned text, boolean undo, Object[] table, KnifeDocument.SpanFactory spans) {
+            if (undo) {
+                bindText(inserted, text, start, table, spans);
+                insertedBounds.bind(text, table, spans);
+                bindText(removed, null, start, table, spans);
+                removedBounds.bind(null, table, spans);
+            } else {
+                bindText(removed, text, start, table, spans);
+                removedBounds.bind(text, table, spans);
+                bindText(inserted, null, start, table, spans);
+                insertedBounds.bind(null, table, spans);
+            }
+        }
+
+        @Override
+        void collect(Map<Object, Integer> ids, List<Object> table) {
+            for (Object span : removed.getSpans(0, removed.length(), Object.class)) {
+                collect(span, ids, table);
+            }
+
+            for (Object span : inserted.getSpans(0, inserted.length(), Object.class)) {
+                collect(span, ids, table);
+            }
+
+            removedBounds.collect(ids, table);
+            insertedBounds.collect(ids, table);
+        }
+
+        @Override
+        void write(DataOutputStream out, Map<Object, Integer> ids) throws IOException {
+            out.writeByte(KIND);
+            out.writeInt(start);
+            out.writeLong(time);
+            writeText(out, removed, ids);
+            writeText(out, inserted, ids);
+            removedBounds.write(out, ids);
+            insertedBounds.write(out, ids);
+        }
+
+        private static Edit read(DataInputStream in, Object[] table) throws IOException {
+            Edit edit = new Edit(in.readInt(), in.readLong());
+            edit.removed = readText(in, table);
+            edit.inserted = readText(in, table);
+            edit.removedBounds.read(in, table);
+            edit.insertedBounds.read(in, table);
+            return edit;
+        }
+
+        // Takes in an edit that continues this one, false if it does not
+        private boolean merge(Edit next) {
+            int from = next.start - start;
+            int to = from + next.removed.length();
+            int nextEnd = next.start + next.removed.length();
+
+            if (from >= 0 && to <= inserted.length()) {
+                // Rewrites text this edit inserted
+                for (Object span : next.removed.getSpans(0, next.removed.length(), Object.class)) {
+                    inserted.removeSpan(span);
+                }
+
+                // Copied apart, the next edit has an Image of its own for each image
+                for (Image image : inserted.getSpans(from, to, Image.class)) {
+                    if (inserted.getSpanStart(image) >= from && inserted.getSpanEnd(image) <= to) {
+                        inserted.removeSpan(image);
+                    }
+                }
+
+                inserted.replace(from, to, next.inserted);
+
+                // Read in order on redo, the later position of a span wins
+                insertedBounds.shift(nextEnd, next.inserted.length() - next.removed.length());
+                insertedBounds.addAll(next.insertedBounds);
+            } else if (inserted.length() == 0 && next.inserted.length() == 0 && nextEnd == start) {
+                // Backspace
+                removed.insert(0, next.removed);
+                removedBounds.prependAll(next.removedBounds);
+                start = next.start;
+            } else if (inserted.length() == 0 && next.inserted.length() == 0 && next.start == start) {
+                // Forward delete, what came after this edit's text was found at its start
+                next.removedBounds.shift(start + 1, removed.length());
+                removed.append(next.removed);
+                removedBounds.prependAll(next.removedBounds);
+            } else {
+                return false;
+            }
+
+            time = next.time;
+            return true;
+        }
+
+        // Swaps the current text of the range for the replacement and moves the spans reaching
+        // across the range back to where they were, unless they were removed since. The spans
+        // inside the current text are dropped first, replace() would only shrink the inclusive
+        // ones to a point. Only the range is replaced, so the layout reflows just the lines it is on.
+        private static int apply(Editable text, int start, Spanned current, Spanned replacement, Bounds bounds, ImageLoader images) {
+            int end = start + current.length();
+            for (Object span : current.getSpans(0, current.length(), Object.class)) {
+                text.removeSpan(span);
+            }
+
+            // The current text holds the images its Images stand for
+            for (ImageSpan image : text.getSpans(start, end, ImageSpan.class)) {
+                if (text.getSpanStart(image) >= start && text.getSpanEnd(image) <= end) {
+                    text.removeSpan(image);
+                }
+            }
+
+            text.replace(start, end, load(replacement, images));
+
+            for (int i = 0; i < bounds.count; i++) {
+                if (bounds.spans[i] == null || text.getSpanStart(bounds.spans[i]) < 0) {
+                    continue;
+                }
+
+                text.setSpan(bounds.spans[i], bounds.starts[i], bounds.ends[i], bounds.flags[i]);
+            }
+
+            return start + replacement.length();
+        }
+
+        // Swaps the Images of the replacement for image spans, on a copy so it keeps its Images
+        private static Spanned load(Spanned replacement, ImageLoader images) {
+            Image[] found = replacement.getSpans(0, replacement.length(), Image.class);
+            if (found.length == 0) {
+                return replacement;
+            }
+
+            SpannableStringBuilder loaded = new SpannableStringBuilder(replacement);
+            for (Image image : found) {
+                int spanStart = loaded.getSpanStart(image);
+                int spanEnd = loaded.getSpanEnd(image);
+                int flags = loaded.getSpanFlags(image);
+
+                loaded.removeSpan(image);
+                ImageSpan span = images != null ? images.load(image.source, image.mediaImageType, image.width, image.height) : null;
+                if (span != null) {
+                    loaded.setSpan(span, spanStart, spanEnd, flags);
+                }
+            }
+
+            return loaded;
+        }
+    }
+
+    // A formatting span added, removed or moved, -1 stands for not being in the text
+    private static final class SpanChange extends Change {
+        private static final byte KIND = 1;
+
+        private Object span;
+        private final int oldStart;
+        private final int oldEnd;
+        private final int oldFlags;
+        private final int newStart;
+        private final int newEnd;
+        private final int newFlags;
+
+        private SpanChange(Object span, int oldStart, int oldEnd, int oldFlags, int newStart, int newEnd, int newFlags) {
+            this.span = span;
+            this.oldStart = oldStart;
+            this.oldEnd = oldEnd;
+            this.oldFlags = oldFlags;
+            this.newStart = newStart;
+            this.newEnd = newEnd;
+            this.newFlags = newFlags;
+        }
+
+        @Override
+        int undo(Editable text, ImageLoader images) {
+            apply(text, oldStart, oldEnd, oldFlags);
+            return -1;
+        }
+
+        @Override
+        int redo(Editable text, ImageLoader images) {
+            apply(text, newStart, newEnd, newFlags);
+            return -1;
+        }
+
+        @Override
+        long measure() {
+            return 48;
+        }
+
+        @Override
+        void bind(Spanned text, boolean undo, Object[] table, KnifeDocument.SpanFactory spans) {
+            span = undo ? resolve(text, span, newStart, newEnd, table, spans) : resolve(text, span, oldStart, oldEnd, table, spans);
+        }
+
+        @Override
+        void collect(Map<Object, Integer> ids, List<Object> table) {
+            collect(span, ids, table);
+        }
+
+        @Override
+        void write(DataOutputStream out, Map<Object, Integer> ids) throws IOException {
+            out.writeByte(KIND);
+            out.writeInt(id(span, ids));
+            out.writeInt(oldStart);
+            out.writeInt(oldEnd);
+            out.writeInt(oldFlags);
+            out.writeInt(newStart);
+            out.writeInt(newEnd);
+            out.writeInt(newFlags);
+        }
+
+        // A span left out of the log comes back as null, its change does nothing then
+        private static SpanChange read(DataInputStream in, Object[] table) throws IOException {
+            int id = in.readInt();
+            return new SpanChange(id >= 0 ? table[id] : null, in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+        }
+
+        private void apply(Editable text, int start, int end, int flags) {
+            if (span == null) {
+                return;
+            }
+
+            if (start < 0) {
+                text.removeSpan(span);
+            } else {
+                text.setSpan(span, start, end, flags);
+            }
+        }
+    }
+
+    private static final class Bounds {
+        private Object[] spans = new Object[0];
+        private int[] starts = new int[0];
+        private int[] ends = new int[0];
+        private int[] flags = new int[0];
+        private int count = 0;
+
+        private void add(Object span, int start, int end, int flag) {
+            if (count == spans.length) {
+                int capacity = Math.max(4, count * 2);
+                Object[] grownSpans = new Object[capacity];
+                System.arraycopy(spans, 0, grownSpans, 0, count);
+                spans = grownSpans;
+                starts = grow(starts, capacity);
+                ends = grow(ends, capacity);
+                flags = grow(flags, capacity);
+            }
+
+            spans[count] = span;
+            starts[count] = start;
+            ends[count] = end;
+            flags[count] = flag;
+            count++;
+        }
+
+        private void addAll(Bounds other) {
+            for (int i = 0; i < other.count; i++) {
+                add(other.spans[i], other.starts[i], other.ends[i], other.flags[i]);
+            }
+        }
+
+        // The older positions go last so they win on undo
+        private void prependAll(Bounds other) {
+            Bounds older = copyOf(this);
+            count = 0;
+            addAll(other);
+            addAll(older);
+        }
+
+        // Moves the positions at or after from, for text inserted or removed there
+        private void shift(int from, int delta) {
+            for (int i = 0; i < count; i++) {
+                if (starts[i] >= from) {
+                    starts[i] += delta;
+                }
+
+                if (ends[i] >= from) {
+                    ends[i] += delta;
+                }
+            }
+        }
+
+        // Live spans are looked up at their positions, a null text builds them anew
+        private void bind(Spanned text, Object[] table, KnifeDocument.SpanFactory factory) {
+            for (int i = 0; i < count; i++) {
+                spans[i] = resolve(text, spans[i], starts[i], ends[i], table, factory);
+            }
+        }
+
+        private void collect(Map<Object, Integer> ids, List<Object> table) {
+            for (int i = 0; i < count; i++) {
+                Change.collect(spans[i], ids, table);
+            }
+        }
+
+        private void write(DataOutputStream out, Map<Object, Integer> ids) throws IOException {
+            int written = 0;
+            for (int i = 0; i < count; i++) {
+                if (Change.id(spans[i], ids) >= 0) {
+                    written++;
+                }
+            }
+
+            out.writeInt(written);
+            for (int i = 0; i < count; i++) {
+                if (Change.id(spans[i], ids) >= 0) {
+                    out.writeInt(Change.id(spans[i], ids));
+                    out.writeInt(starts[i]);
+                    out.writeInt(ends[i]);
+                    out.writeInt(flags[i]);
+                }
+            }
+        }
+
+        private void read(DataInputStream in, Object[] table) throws IOException {
+            int written = in.readInt();
+            for (int i = 0; i < written; i++) {
+                add(table[in.readInt()], in.readInt(), in.readInt(), in.readInt());
+            }
+        }
+
+        private static Bounds copyOf(Bounds bounds) {
+            Bounds copy = new Bounds();
+            copy.addAll(bounds);
+            return copy;
+        }
+
+        private static int[] grow(int[] array, int capacity) {
+            int[] grown = new int[capacity];
+            System.arraycopy(array, 0, grown, 0, array.length);
+            return grown;
+        }
+    }
+
+    // Stands for a span read back from the log, until bound to a live or new one
+    private static final class Ref {
+        private final int id;
+        private final int type;
+        private final int value;
+        private final String string;
+
+        private Ref(int id, int type, int value, String string) {
+            this.id = id;
+            this.type = type;
+            this.value = value;
+            this.string = string;
+        }
+
+        private boolean matches(Object span) {
+            if (KnifeDocument.spanType(span) != type) {
+                return false;
+            }
+
+            if (type == KnifeDocument.SPAN_LINK || type == KnifeDocument.SPAN_IMAGE) {
+                return TextUtils.equals(KnifeDocument.spanString(span), string);
+            } else {
+                return KnifeDocument.spanValue(span) == value;
+            }
+        }
+
+        private static void write(DataOutputStream out, Object span) throws IOException {
+            int type = typeOf(span);
+            out.writeInt(type);
+
+            String string;
+            if (span instanceof Image) {
+                Image image = (Image) span;
+                out.writeInt(image.mediaImageType != null ? image.mediaImageType.getValue() : -1);
+                out.writeInt(image.width);
+                out.writeInt(image.height);
+                string = image.source;
+            } else if (span instanceof Ref) {
+                out.writeInt(((Ref) span).value);
+                string = ((Ref) span).string;
+            } else {
+                out.writeInt(KnifeDocument.spanValue(span));
+                string = KnifeDocument.spanString(span);
+            }
+
+            out.writeBoolean(string != null);
+            if (string != null) {
+                Change.writeString(out, string);
+            }
+        }
+
+        // Images come back as their Image, they are never bound to a live span
+        private static Object read(DataInputStream in, int id) throws IOException {
+            int type = in.readInt();
+            int value = in.readInt();
+
+            if (type == KnifeDocument.SPAN_IMAGE) {
+                int width = in.readInt();
+                int height = in.readInt();
+                String source = in.readBoolean() ? Change.readString(in) : null;
+                return new Image(source, MediaImageType.get(value), width, height);
+            }
+
+            String string = in.readBoolean() ? Change.readString(in) : null;
+            return new Ref(id, type, value, string);
+        }
+    }
+
+    // Stands for an image span in the recorded text, the loader builds it anew
+    private static final class Image {
+        private final String source;
+        private final MediaImageType mediaImageType; // Null for an image read from html
+        private final int width;
+        private final int height;
+
+        private Image(String source, MediaImageType mediaImageType, int width, int height) {
+            this.source = source;
+            this.mediaImageType = mediaImageType;
+            this.width = width;
+            this.height = height;
+        }
+
+        private static Image of(ImageSpan span) {
+            MediaImageType mediaImageType = span instanceof ImageCustomSpan ? ((ImageCustomSpan) span).getMediaImageType() : null;
+            Rect bounds = span.getDrawable().getBounds();
+            return new Image(span.getSource(), mediaImageType, bounds.width(), bounds.height());
+        }
+    }
+
+    // Builds an image span showing the source at width by height, a size of 0 is not known yet
+    interface ImageLoader {
+        ImageSpan load(String source, MediaImageType mediaImageType, int width, int height);
+    }
+}
@@ -0,0 +1,133 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+// Append only file KnifeHistory spills the steps over its byte budget to.
+//
+// Records are never rewritten, a step read back and spilled again is appended anew. Once the
+// records no step needs take more room than the ones still needed, KnifeHistory copies the live
+// ones to a new log and drops this one, so the file stays within twice what the steps need. The
+// file is created with the first record and deleted once no record is needed anymore.
+//
+// A history restored from a file reads its steps through a log opened on that file, which is
+// only read from and left in place.
+final class KnifeHistoryLog {
+    private final File directory;
+    private File path;
+    private RandomAccessFile file;
+    private long length = 0;
+    private boolean saved = false;
+
+    // Records still needed, and their bytes
+    private int live = 0;
+    private long liveBytes = 0;
+
+    KnifeHistoryLog(File directory) {
+        this.directory = directory;
+    }
+
+    static KnifeHistoryLog open(File saved) throws IOException {
+        KnifeHistoryLog log = new KnifeHistoryLog(null);
+        log.file = new RandomAccessFile(saved, "r");
+        log.length = log.file.length();
+        log.saved = true;
+        return log;
+    }
+
+    // Returns where the record starts
+    long append(byte[] record) throws IOException {
+        if (saved) {
+            throw new IOException("History log is read only");
+        }
+
+        if (file == null) {
+            path = File.createTempFile("knife-history", ".log", directory);
+            file = new RandomAccessFile(path, "rw");
+        }
+
+        long offset = length;
+        file.seek(offset);
+        file.write(record);
+        length += record.length;
+        live++;
+        liveBytes += record.length;
+        return offset;
+    }
+
+    // An empty log in the same directory, for the live records of this one
+    KnifeHistoryLog renew() {
+        return new KnifeHistoryLog(directory);
+    }
+
+    // The dead records outweigh the live ones. A saved history is never rewritten.
+    boolean isWasteful() {
+        return !saved && length - liveBytes > liveBytes;
+    }
+
+    byte[] read(long offset, int count) throws IOException {
+        if (file == null) {
+            throw new IOException("History log is closed");
+        }
+
+        if (offset < 0 || count < 0 || offset + count > length) {
+            throw new IOException("Corrupt history log");
+        }
+
+        byte[] record = new byte[count];
+        file.seek(offset);
+        file.readFully(record);
+        return record;
+    }
+
+    // Records of a saved history the steps still need
+    void retain(int records) {
+        live += records;
+    }
+
+    // The record of count bytes was read back or dropped, the file goes with the last one
+    void release(int count) {
+        liveBytes -= count;
+        if (--live <= 0) {
+            close();
+        }
+    }
+
+    void close() {
+        if (file != null) {
+            try {
+                file.close();
+            } catch (IOException e) {
+                // Deleted below anyway
+            }
+
+            if (!saved) {
+                //noinspection ResultOfMethodCallIgnored
+                path.delete();
+            }
+        }
+
+        file = null;
+        path = null;
+        length = 0;
+        live = 0;
+        liveBytes = 0;
+    }
+}
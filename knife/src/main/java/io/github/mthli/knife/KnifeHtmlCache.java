@@ -0,0 +1,491 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.SpanWatcher;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+// Paragraph granular HTML cache behind KnifeText.toHtml().
+//
+// The cache sits on the Editable as a watcher, so every text edit and span change drops the
+// fragments it touches, or the whole blocks it touches for paragraph spans. toHtml() then
+// serializes only the dropped ranges and joins them with the cached fragments.
+//
+// The fragments are kept in a gap buffer, as KnifeLines keeps its line breaks. The ones before the
+// gap keep their offsets from the start of the text and the ones after it from the end, so an edit
+// only moves the gap to where it happened and drops the fragments it touches.
+final class KnifeHtmlCache implements TextWatcher, SpanWatcher, NoCopySpan {
+    private static final String LINE_BREAK = "<br>";
+
+    // Above TextView's own watcher, so edits are seen before any listener reacts to them
+    private static final int PRIORITY = 200;
+
+    private Fragment[] fragments = new Fragment[16];
+    private int gapStart = 0;
+    private int gapEnd = fragments.length;
+    private int length = 0;
+    private Spannable attached;
+
+    // Snapshots still reading the attached text, copied before it changes
+    private final List<KnifeSnapshot> snapshots = new ArrayList<>();
+
+    // Bumped whenever fragments are dropped or moved, tasks from older generations are stale
+    private int generation = 0;
+    private boolean textChanging = false;
+    private boolean paragraphsChanged = false;
+
+    // Last edit, TextView reports the spans it moved only after afterTextChanged()
+    private boolean editing = false;
+    private int editEnd;
+    private int editDelta;
+
+    void attach(Spannable text) {
+        if (attached == text) {
+            return;
+        }
+
+        if (attached != null) {
+            attached.removeSpan(this);
+        }
+
+        detachSnapshots();
+        setFragments(new ArrayList<Fragment>());
+        length = text != null ? text.length() : 0;
+        generation++;
+        textChanging = false;
+        paragraphsChanged = false;
+        editing = false;
+        attached = text;
+
+        if (text != null) {
+            text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE | PRIORITY << Spanned.SPAN_PRIORITY_SHIFT);
+        }
+    }
+
+    String toHtml(Spanned text) {
+        StringBuilder out = new StringBuilder();
+
+        try {
+            toHtml(text, out);
+        } catch (IOException e) {
+            // StringBuilder never throws
+            throw new IllegalStateException(e);
+        }
+
+        return out.toString();
+    }
+
+    void toHtml(Spanned text, Appendable out) throws IOException {
+        if (text != attached) {
+            KnifeParser.toHtml(text, out);
+            return;
+        }
+
+        List<Fragment> fresh = update(text, getFragments());
+        setFragments(fresh);
+        write(fresh, out);
+    }
+
+    // Taken on the UI thread, the returned task may then run on any thread
+    Task snapshot(Spanned text) {
+        List<Fragment> copy = new ArrayList<>();
+        if (text == attached) {
+            // onTextChanged() moves the live fragments, their HTML is shared as is
+            for (Fragment fragment : getFragments()) {
+                copy.add(new Fragment(fragment));
+            }
+        }
+
+        KnifeSnapshot snapshot = new KnifeSnapshot(text, text == attached);
+        if (text == attached) {
+            Iterator<KnifeSnapshot> iterator = snapshots.iterator();
+            while (iterator.hasNext()) {
+                if (iterator.next().isReleased()) {
+                    iterator.remove();
+                }
+            }
+
+            snapshots.add(snapshot);
+        }
+
+        return new Task(text, snapshot, copy, generation);
+    }
+
+    private void detachSnapshots() {
+        for (KnifeSnapshot snapshot : snapshots) {
+            snapshot.detach();
+        }
+
+        snapshots.clear();
+    }
+
+    // Back on the UI thread, keep what the task serialized unless the text changed meanwhile
+    void adopt(Task task) {
+        if (task.done && task.source == attached && task.generation == generation) {
+            setFragments(task.fragments);
+        }
+    }
+
+    private static List<Fragment> update(Spanned text, List<Fragment> fragments) throws IOException {
+        int length = text.length();
+        List<Fragment> fresh = new ArrayList<>(fragments.size());
+        int index = 0;
+        boolean blockStart = true;
+
+        for (int i = 0; i < length; ) {
+            while (index < fragments.size() && fragments.get(index).start < i) {
+                index++;
+            }
+
+            if (index < fragments.size() && fragments.get(index).start == i && fragments.get(index).blockStart == blockStart) {
+                Fragment fragment = fragments.get(index++);
+                fresh.add(fragment);
+                i = fragment.end;
+                blockStart = fragment.blockEnd;
+                continue;
+            }
+
+            // Serialize up to the next cached fragment that starts a line, lines are independent,
+            // but bullets and quotes reaching into the range are always serialized as a whole
+            index = nextLineFragment(text, fragments, index, i + 1);
+            int dirtyEnd = index < fragments.size() ? fragments.get(index).start : length;
+            for (int reach = paragraphReach(text, i, dirtyEnd); reach > dirtyEnd; reach = paragraphReach(text, i, dirtyEnd)) {
+                index = nextLineFragment(text, fragments, index, reach);
+                dirtyEnd = index < fragments.size() ? fragments.get(index).start : length;
+            }
+
+            KnifeSerializer serializer = new KnifeSerializer(text, i, dirtyEnd);
+            while (i < dirtyEnd) {
+                StringBuilder html = new StringBuilder();
+                KnifeHtmlWriter writer = new KnifeHtmlWriter(html);
+                int next = blockStart ? serializer.withinBlock(writer, i, true) : serializer.withinLine(writer, i);
+                next = Math.min(next, length);
+
+                boolean blockEnd = writer.isBlockClosed() || isTransition(text, next);
+                fresh.add(new Fragment(i, next, html.toString(), blockStart, blockEnd, writer.isBlockClosed()));
+                i = next;
+                blockStart = blockEnd;
+            }
+        }
+
+        return fresh;
+    }
+
+    private static void write(List<Fragment> fragments, Appendable out) throws IOException {
+        boolean blockClosed = false;
+        for (Fragment fragment : fragments) {
+            if (fragment.html.isEmpty()) {
+                continue;
+            }
+
+            if (blockClosed && fragment.html.startsWith(LINE_BREAK)) {
+                out.append(fragment.html, LINE_BREAK.length(), fragment.html.length());
+            } else {
+                out.append(fragment.html);
+            }
+
+            blockClosed = fragment.blockClosed;
+        }
+    }
+
+    // Unstyled blocks end on the next paragraph span transition
+    private static boolean isTransition(Spanned text, int i) {
+        return i < text.length() && text.nextSpanTransition(i - 1, i + 1, ParagraphStyle.class) == i;
+    }
+
+    private static int nextLineFragment(Spanned text, List<Fragment> fragments, int index, int from) {
+        while (index < fragments.size()) {
+            int start = fragments.get(index).start;
+            if (start >= from && text.charAt(start - 1) == '\n') {
+                break;
+            }
+
+            index++;
+        }
+
+        return index;
+    }
+
+    private static int paragraphReach(Spanned text, int start, int end) {
+        int reach = end;
+        for (ParagraphStyle span : text.getSpans(start, end, ParagraphStyle.class)) {
+            reach = Math.max(reach, text.getSpanEnd(span));
+        }
+
+        return reach;
+    }
+
+    private void invalidate(int start, int end) {
+        generation++;
+
+        int first = indexOf(start);
+        int last = first;
+        while (last < getFragmentCount() && getStart(last) <= end) {
+            last++;
+        }
+
+        remove(first, last);
+    }
+
+    // Paragraph spans decide how a whole block is written, so drop every block touching [start, end]
+    private void invalidateBlocks(int start, int end) {
+        generation++;
+
+        int count = getFragmentCount();
+        int first = indexOf(start);
+
+        // Dropped ranges before start may still belong to the block of the fragment before them
+        if (first > 0 && (first == count || getStart(first) > start)) {
+            first--;
+        }
+
+        if (first == count) {
+            return;
+        }
+
+        while (first > 0 && !getFragment(first).blockStart) {
+            first--;
+        }
+
+        int last = first;
+        while (last < count && (last == first || getStart(last) <= end || !getFragment(last).blockStart)) {
+            last++;
+        }
+
+        remove(first, last);
+    }
+
+    private void invalidateFormat(Object what, int start, int end) {
+        if (what instanceof ParagraphStyle) {
+            invalidateBlocks(start, end);
+        } else if (what instanceof CharacterStyle) {
+            invalidate(start, end);
+        }
+    }
+
+    private int getFragmentCount() {
+        return gapStart + fragments.length - gapEnd;
+    }
+
+    private Fragment getFragment(int index) {
+        return fragments[index < gapStart ? index : index + gapEnd - gapStart];
+    }
+
+    private int getStart(int index) {
+        return index < gapStart ? fragments[index].start : length - fragments[index + gapEnd - gapStart].start;
+    }
+
+    private int getEnd(int index) {
+        return index < gapStart ? fragments[index].end : length - fragments[index + gapEnd - gapStart].end;
+    }
+
+    // First fragment ending at or after offset
+    private int indexOf(int offset) {
+        int low = 0;
+        int high = getFragmentCount();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getEnd(middle) < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private void moveGap(int index) {
+        while (gapStart > index) {
+            Fragment fragment = fragments[--gapStart];
+            fragments[gapStart] = null;
+            flip(fragment);
+            fragments[--gapEnd] = fragment;
+        }
+
+        while (gapStart < index) {
+            Fragment fragment = fragments[gapEnd];
+            fragments[gapEnd++] = null;
+            flip(fragment);
+            fragments[gapStart++] = fragment;
+        }
+    }
+
+    // Between offsets from the start and offsets from the end of the text
+    private void flip(Fragment fragment) {
+        fragment.start = length - fragment.start;
+        fragment.end = length - fragment.end;
+    }
+
+    // Drops the fragments in [first, last)
+    private void remove(int first, int last) {
+        moveGap(first);
+        for (int i = first; i < last; i++) {
+            fragments[gapEnd++] = null;
+        }
+    }
+
+    // All of them from the start of the text, in order
+    private List<Fragment> getFragments() {
+        moveGap(getFragmentCount());
+        return Arrays.asList(fragments).subList(0, gapStart);
+    }
+
+    private void setFragments(List<Fragment> fresh) {
+        fragments = fresh.toArray(new Fragment[Math.max(16, fresh.size() * 2)]);
+        gapStart = fresh.size();
+        gapEnd = fragments.length;
+    }
+
+    // Span moves reported right after an edit, the old offsets inside the edit are not known
+    private boolean isShiftedByEdit(int ostart, int oend, int nstart, int nend) {
+        return editing && isShiftedByEdit(ostart, nstart) && isShiftedByEdit(oend, nend);
+    }
+
+    private boolean isShiftedByEdit(int old, int now) {
+        return now > editEnd ? old == now - editDelta : old == now;
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+        detachSnapshots();
+        textChanging = true;
+        editing = false;
+    }
+
+    @Override
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+        int end = start + before;
+        int delta = count - before;
+
+        // The fragments after the gap are kept from the end, the ones behind the edit move with it
+        invalidate(start, end);
+        length += delta;
+
+        // Paragraph spans emptied by the edit are removed while the text is changing
+        if (paragraphsChanged) {
+            invalidateBlocks(start, start + count);
+            paragraphsChanged = false;
+        }
+
+        editEnd = start + count;
+        editDelta = delta;
+    }
+
+    @Override
+    public void afterTextChanged(Editable text) {
+        textChanging = false;
+        editing = true;
+    }
+
+    @Override
+    public void onSpanAdded(Spannable text, Object what, int start, int end) {
+        onSpanChanged(what, start, end);
+    }
+
+    @Override
+    public void onSpanRemoved(Spannable text, Object what, int start, int end) {
+        onSpanChanged(what, start, end);
+    }
+
+    @Override
+    public void onSpanChanged(Spannable text, Object what, int ostart, int oend, int nstart, int nend) {
+        if (textChanging) {
+            paragraphsChanged |= what instanceof ParagraphStyle;
+        } else if (!isShiftedByEdit(ostart, oend, nstart, nend)) {
+            invalidateFormat(what, ostart, oend);
+            invalidateFormat(what, nstart, nend);
+        }
+    }
+
+    private void onSpanChanged(Object what, int start, int end) {
+        if (textChanging) {
+            paragraphsChanged |= what instanceof ParagraphStyle;
+        } else {
+            invalidateFormat(what, start, end);
+        }
+    }
+
+    private static final class Fragment {
+        private int start;
+        private int end;
+        private final String html;
+
+        // False for the later lines of an unstyled block
+        private final boolean blockStart;
+
+        // Span changes at end drop the fragment, so this holds as long as it is cached
+        private final boolean blockEnd;
+
+        // True for bullets and quotes, the <br> after them is dropped
+        private final boolean blockClosed;
+
+        private Fragment(int start, int end, String html, boolean blockStart, boolean blockEnd, boolean blockClosed) {
+            this.start = start;
+            this.end = end;
+            this.html = html;
+            this.blockStart = blockStart;
+            this.blockEnd = blockEnd;
+            this.blockClosed = blockClosed;
+        }
+
+        private Fragment(Fragment fragment) {
+            this(fragment.start, fragment.end, fragment.html, fragment.blockStart, fragment.blockEnd, fragment.blockClosed);
+        }
+    }
+
+    static final class Task implements Callable<String> {
+        private final Spanned source;
+        private final KnifeSnapshot text;
+        private final int generation;
+        private List<Fragment> fragments;
+        private boolean done = false;
+
+        private Task(Spanned source, KnifeSnapshot text, List<Fragment> fragments, int generation) {
+            this.source = source;
+            this.text = text;
+            this.fragments = fragments;
+            this.generation = generation;
+        }
+
+        @Override
+        public String call() throws IOException {
+            try {
+                StringBuilder out = new StringBuilder();
+                fragments = update(text, fragments);
+                write(fragments, out);
+                done = true;
+                return out.toString();
+            } finally {
+                text.release();
+            }
+        }
+    }
+}
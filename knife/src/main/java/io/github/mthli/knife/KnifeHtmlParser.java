@@ -0,0 +1,526 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.graphics.Color;
+import android.graphics.Typeface;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+import java.util.Locale;
+
+import io.github.mthli.knife.defaults.AligningDefault;
+import io.github.mthli.knife.defaults.HeadingTagDefault;
+
+// Streaming parser for the HTML KnifeParser.toHtml() writes, one pass and no DOM.
+//
+// Open tags are kept on a mark stack holding the index of their span, so closing a tag never
+// scans the text or its spans. Spans are added in the order their tags open, which is the order
+// the serializer reads them back in. Anything outside the Knife tag set keeps only its text.
+//
+// The document can also be read in chunks, each one ending on a line break outside of any tag
+// and holding its own text and spans.
+final class KnifeHtmlParser {
+    private static final char IMAGE = '\uFFFC';
+
+    // Tags with a mark on the stack
+    private static final int TAG_INLINE = 0;
+    private static final int TAG_BLOCK = 1;
+
+    private final Reader in;
+    private final char[] buffer = new char[8192];
+    private int position = 0;
+    private int limit = 0;
+
+    private StringBuilder text = new StringBuilder();
+    private KnifeDocument.Builder builder = new KnifeDocument.Builder(text);
+
+    // Characters of the chunks already returned, and the last of them
+    private int emitted = 0;
+    private char previous = 0;
+    private boolean done = false;
+
+    private String[] markTags = new String[16];
+    private int[] markKinds = new int[16];
+    private int[] markSpans = new int[16];
+    private int markCount = 0;
+
+    // Block ends are only written once more text follows them
+    private boolean pendingLineBreak = false;
+
+    // KnifeParser.toHtml() drops the <br> right after </ul> and </blockquote>
+    private boolean lineBreakDropped = false;
+
+    KnifeHtmlParser(Reader in) {
+        this.in = in;
+    }
+
+    KnifeDocument parse() throws IOException {
+        KnifeDocument document = parse(Integer.MAX_VALUE);
+        return document != null ? document : new KnifeDocument.Builder("").build();
+    }
+
+    // Reads on to the first line break outside of any tag once length characters are read, or
+    // to the end. Returns null after the end was returned.
+    KnifeDocument parse(int length) throws IOException {
+        if (done) {
+            return null;
+        }
+
+        for (int c = read(); c >= 0; c = read()) {
+            if (c == '<') {
+                handleMarkup();
+            } else if (c == '&') {
+                appendText(readEntity());
+            } else if (isWhitespace(c) && c != ' ') {
+                handleWhitespace();
+            } else {
+                appendText((char) c);
+            }
+
+            if (text.length() >= length && markCount == 0 && (pendingLineBreak || lastChar() == '\n')) {
+                return nextChunk();
+            }
+        }
+
+        while (markCount > 0) {
+            closeMark(markCount - 1);
+        }
+
+        done = true;
+        return nextChunk();
+    }
+
+    private KnifeDocument nextChunk() {
+        KnifeDocument document = builder.build();
+        if (text.length() > 0) {
+            emitted += text.length();
+            previous = text.charAt(text.length() - 1);
+        }
+
+        text = new StringBuilder();
+        builder = new KnifeDocument.Builder(text);
+        return document;
+    }
+
+    private boolean isEmpty() {
+        return emitted == 0 && text.length() == 0;
+    }
+
+    private char lastChar() {
+        return text.length() > 0 ? text.charAt(text.length() - 1) : previous;
+    }
+
+    private void handleMarkup() throws IOException {
+        int c = peek();
+        if (c == '/') {
+            read();
+            handleEndTag(readName());
+            skipTag();
+        } else if (c == '!') {
+            skipComment();
+        } else if (c == '?') {
+            skipTag();
+        } else if (isLetter(c)) {
+            handleStartTag(readName());
+        } else {
+            appendText('<');
+        }
+    }
+
+    private void handleStartTag(String tag) throws IOException {
+        if (tag.equals("br")) {
+            skipTag();
+            if (lineBreakDropped) {
+                flushLineBreak();
+                text.append('\n');
+            }
+
+            appendText('\n');
+        } else if (tag.equals("img")) {
+            String src = readAttributes("src");
+            appendText(IMAGE);
+            builder.addSpan(KnifeDocument.SPAN_IMAGE, text.length() - 1, text.length(), src);
+        } else if (tag.equals("b") || tag.equals("strong")) {
+            skipTag();
+            openMark(tag, TAG_INLINE, KnifeDocument.SPAN_STYLE, Typeface.BOLD);
+        } else if (tag.equals("i") || tag.equals("em") || tag.equals("cite") || tag.equals("dfn")) {
+            skipTag();
+            openMark(tag, TAG_INLINE, KnifeDocument.SPAN_STYLE, Typeface.ITALIC);
+        } else if (tag.equals("u")) {
+            skipTag();
+            openMark(tag, TAG_INLINE, KnifeDocument.SPAN_UNDERLINE, 0);
+        } else if (tag.equals("del") || tag.equals("s") || tag.equals("strike")) {
+            skipTag();
+            openMark(tag, TAG_INLINE, KnifeDocument.SPAN_STRIKETHROUGH, 0);
+        } else if (tag.equals("a")) {
+            String href = readAttributes("href");
+            openMark(tag, TAG_INLINE, KnifeDocument.SPAN_LINK, builder.intern(href));
+        } else if (tag.equals("font")) {
+            Integer color = parseColor(readAttributes("color"));
+            openMark(tag, TAG_INLINE, color != null ? KnifeDocument.SPAN_TEXT_COLOR : 0, color != null ? color : 0);
+        } else if (tag.length() == 2 && tag.charAt(0) == 'h' && tag.charAt(1) >= '1' && tag.charAt(1) <= '6') {
+            skipTag();
+            float size = HeadingTagDefault.values()[tag.charAt(1) - '1'].getValue();
+            openMark(tag, TAG_INLINE, KnifeDocument.SPAN_HEADING_TAG, Float.floatToIntBits(size));
+        } else if (tag.equals("p")) {
+            // Knife writes <p align> around the aligned run only, plain paragraphs are blocks
+            AligningDefault aligning = parseAligning(readAttributes("align"));
+            if (aligning != null) {
+                openMark(tag, TAG_INLINE, KnifeDocument.SPAN_TEXT_ALIGN, aligning.getValue());
+            } else {
+                openBlock(tag, 0);
+            }
+        } else if (tag.equals("li")) {
+            skipTag();
+            openBlock(tag, KnifeDocument.SPAN_BULLET);
+        } else if (tag.equals("blockquote")) {
+            skipTag();
+            openBlock(tag, KnifeDocument.SPAN_QUOTE);
+        } else if (tag.equals("ul") || tag.equals("ol") || tag.equals("div")) {
+            skipTag();
+            openBlock(tag, 0);
+        } else {
+            skipTag();
+        }
+    }
+
+    // Knife does not always close inline tags in reverse order, so those end alone. Block tags
+    // also end whatever was left open inside them.
+    private void handleEndTag(String tag) {
+        for (int i = markCount - 1; i >= 0; i--) {
+            if (markTags[i].equals(tag)) {
+                if (markKinds[i] == TAG_BLOCK) {
+                    while (markCount > i + 1) {
+                        closeMark(markCount - 1);
+                    }
+                }
+
+                closeMark(i);
+                return;
+            }
+        }
+    }
+
+    private void openBlock(String tag, int type) {
+        // An unclosed <li> or <p> ends where the next one starts
+        if (markCount > 0 && markTags[markCount - 1].equals(tag) && (tag.equals("li") || tag.equals("p"))) {
+            closeMark(markCount - 1);
+        }
+
+        if (pendingLineBreak || (!isEmpty() && lastChar() != '\n')) {
+            text.append('\n');
+        }
+
+        pendingLineBreak = false;
+        openMark(tag, TAG_BLOCK, type, 0);
+    }
+
+    private void openMark(String tag, int kind, int type, int value) {
+        if (markCount == markTags.length) {
+            markTags = Arrays.copyOf(markTags, markCount * 2);
+            markKinds = Arrays.copyOf(markKinds, markCount * 2);
+            markSpans = Arrays.copyOf(markSpans, markCount * 2);
+        }
+
+        markTags[markCount] = tag;
+        markKinds[markCount] = kind;
+        markSpans[markCount] = -1;
+        lineBreakDropped = false;
+
+        // Reserved now so spans keep the order of their tags, the end is set on close
+        if (type != 0) {
+            flushLineBreak();
+            markSpans[markCount] = builder.getSpanCount();
+            builder.addSpan(type, text.length(), text.length(), value);
+        }
+
+        markCount++;
+    }
+
+    private void closeMark(int index) {
+        if (markSpans[index] >= 0) {
+            builder.setSpanEnd(markSpans[index], text.length());
+        }
+
+        if (markKinds[index] == TAG_BLOCK && !isEmpty()) {
+            pendingLineBreak = true;
+        }
+
+        if (markTags[index].equals("ul") || markTags[index].equals("blockquote")) {
+            lineBreakDropped = true;
+        }
+
+        markCount--;
+        System.arraycopy(markTags, index + 1, markTags, index, markCount - index);
+        System.arraycopy(markKinds, index + 1, markKinds, index, markCount - index);
+        System.arraycopy(markSpans, index + 1, markSpans, index, markCount - index);
+        markTags[markCount] = null;
+    }
+
+    private void flushLineBreak() {
+        if (pendingLineBreak) {
+            text.append('\n');
+            pendingLineBreak = false;
+        }
+    }
+
+    private void appendText(char c) {
+        flushLineBreak();
+        text.append(c);
+        lineBreakDropped = false;
+    }
+
+    private void appendText(String s) {
+        flushLineBreak();
+        text.append(s);
+        lineBreakDropped = false;
+    }
+
+    // Knife writes spaces as they are and line breaks as <br>, so a run of whitespace holding
+    // a line break or tab is source formatting: one space, and none at the start of a line
+    private void handleWhitespace() throws IOException {
+        while (isWhitespace(peek())) {
+            read();
+        }
+
+        if (pendingLineBreak || isEmpty()) {
+            return;
+        }
+
+        char last = lastChar();
+        if (last != ' ' && last != '\n') {
+            text.append(' ');
+        }
+    }
+
+    private String readEntity() throws IOException {
+        StringBuilder name = new StringBuilder();
+        for (int c = peek(); name.length() < 10 && (isLetter(c) || isDigit(c) || (c == '#' && name.length() == 0)); c = peek()) {
+            name.append((char) read());
+        }
+
+        if (peek() == ';') {
+            String decoded = decodeEntity(name.toString());
+            if (decoded != null) {
+                read();
+                return decoded;
+            }
+        }
+
+        return "&" + name;
+    }
+
+    private static String decodeEntity(String name) {
+        if (name.startsWith("#")) {
+            try {
+                boolean hex = name.length() > 1 && (name.charAt(1) == 'x' || name.charAt(1) == 'X');
+                int codePoint = Integer.parseInt(name.substring(hex ? 2 : 1), hex ? 16 : 10);
+                return Character.isValidCodePoint(codePoint) ? new String(Character.toChars(codePoint)) : null;
+            } catch (NumberFormatException e) {
+                return null;
+            }
+        }
+
+        switch (name) {
+            case "lt":
+                return "<";
+            case "gt":
+                return ">";
+            case "amp":
+                return "&";
+            case "quot":
+                return "\"";
+            case "apos":
+                return "'";
+            case "nbsp":
+                // KnifeParser.toHtml() writes runs of spaces as &nbsp;
+                return " ";
+            default:
+                return null;
+        }
+    }
+
+    private static Integer parseColor(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        try {
+            return Color.parseColor(value.trim());
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+
+    private static AligningDefault parseAligning(String value) {
+        if (value == null) {
+            return null;
+        }
+
+        switch (value.trim().toLowerCase(Locale.US)) {
+            case "left":
+                return AligningDefault.LEFT;
+            case "right":
+                return AligningDefault.RIGHT;
+            case "center":
+                return AligningDefault.CENTER;
+            case "justify":
+                return AligningDefault.JUSTIFY;
+            default:
+                return null;
+        }
+    }
+
+    private String readName() throws IOException {
+        StringBuilder name = new StringBuilder();
+        for (int c = peek(); isLetter(c) || isDigit(c); c = peek()) {
+            name.append(Character.toLowerCase((char) read()));
+        }
+
+        return name.toString();
+    }
+
+    // Reads up to the end of the tag and returns the value of the wanted attribute, if any
+    private String readAttributes(String wanted) throws IOException {
+        String found = null;
+
+        while (true) {
+            int c = read();
+            if (c < 0 || c == '>') {
+                return found;
+            } else if (!isLetter(c)) {
+                continue;
+            }
+
+            StringBuilder name = new StringBuilder();
+            name.append(Character.toLowerCase((char) c));
+            for (c = peek(); c >= 0 && c != '=' && c != '>' && c != '/' && !isWhitespace(c); c = peek()) {
+                name.append(Character.toLowerCase((char) read()));
+            }
+
+            while (isWhitespace(peek())) {
+                read();
+            }
+
+            if (peek() != '=') {
+                continue;
+            }
+
+            read();
+            while (isWhitespace(peek())) {
+                read();
+            }
+
+            String value = readAttributeValue();
+            if (found == null && name.toString().equals(wanted)) {
+                found = value;
+            }
+        }
+    }
+
+    private String readAttributeValue() throws IOException {
+        StringBuilder value = new StringBuilder();
+        int quote = peek();
+        if (quote == '"' || quote == '\'') {
+            read();
+        } else {
+            quote = -1;
+        }
+
+        for (int c = peek(); c >= 0; c = peek()) {
+            if (quote >= 0 ? c == quote : isWhitespace(c) || c == '>') {
+                break;
+            }
+
+            read();
+            if (c == '&') {
+                value.append(readEntity());
+            } else {
+                value.append((char) c);
+            }
+        }
+
+        if (quote >= 0) {
+            read();
+        }
+
+        return value.toString();
+    }
+
+    private void skipTag() throws IOException {
+        readAttributes(null);
+    }
+
+    private void skipComment() throws IOException {
+        read();
+        if (peek() != '-') {
+            skipTag();
+            return;
+        }
+
+        // Ends on the first "-->"
+        int dashes = 0;
+        for (int c = read(); c >= 0; c = read()) {
+            if (c == '>' && dashes >= 2) {
+                return;
+            }
+
+            dashes = c == '-' ? dashes + 1 : 0;
+        }
+    }
+
+    private int read() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+
+        return buffer[position++];
+    }
+
+    private int peek() throws IOException {
+        if (position == limit && !fill()) {
+            return -1;
+        }
+
+        return buffer[position];
+    }
+
+    private boolean fill() throws IOException {
+        int count = in.read(buffer, 0, buffer.length);
+        while (count == 0) {
+            count = in.read(buffer, 0, buffer.length);
+        }
+
+        position = 0;
+        limit = Math.max(count, 0);
+        return count > 0;
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\n' || c == '\r' || c == '\t' || c == '\f';
+    }
+
+    private static boolean isLetter(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+}
@@ -0,0 +1,68 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import java.io.IOException;
+
+// Streams the generated HTML into an Appendable. The <br> right after a </ul> or </blockquote>
+// is dropped while writing, so the output never has to be tidied with a regex afterwards.
+final class KnifeHtmlWriter {
+    private final Appendable out;
+    private boolean blockClosed = false;
+
+    KnifeHtmlWriter(Appendable out) {
+        this.out = out;
+    }
+
+    KnifeHtmlWriter append(CharSequence text) throws IOException {
+        blockClosed = false;
+        out.append(text);
+        return this;
+    }
+
+    KnifeHtmlWriter append(char c) throws IOException {
+        blockClosed = false;
+        out.append(c);
+        return this;
+    }
+
+    KnifeHtmlWriter append(int i) throws IOException {
+        return append(String.valueOf(i));
+    }
+
+    // Use for </ul> and </blockquote>
+    KnifeHtmlWriter closeBlock(String tag) throws IOException {
+        out.append(tag);
+        blockClosed = true;
+        return this;
+    }
+
+    // True when the next lineBreak() would be dropped
+    boolean isBlockClosed() {
+        return blockClosed;
+    }
+
+    KnifeHtmlWriter lineBreak() throws IOException {
+        if (blockClosed) {
+            blockClosed = false;
+        } else {
+            out.append("<br>");
+        }
+
+        return this;
+    }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.text.Editable;
+import android.text.NoCopySpan;
+import android.text.Spannable;
+import android.text.Spanned;
+import android.text.TextWatcher;
+
+// Line index behind the bullet and quote operations, lines are split at '\n' as
+// TextUtils.split() does.
+//
+// The offsets of the line breaks are kept sorted in a gap buffer. The ones before the gap are
+// kept from the start of the text and the ones after it from the end, so an edit only moves the
+// gap to where it happened and touches the breaks it removed or inserted. Typing at one place
+// costs the same on the first line as on the ten thousandth.
+final class KnifeLines implements TextWatcher, NoCopySpan {
+    // Above TextView's own watcher, so the lines are right before any listener reacts to an edit
+    private static final int PRIORITY = 200;
+
+    private int[] breaks = new int[16];
+    private int gapStart = 0;
+    private int gapEnd = breaks.length;
+    private int length = 0;
+    private Spannable attached;
+
+    void attach(Spannable text) {
+        if (attached == text) {
+            return;
+        }
+
+        if (attached != null) {
+            attached.removeSpan(this);
+        }
+
+        gapStart = 0;
+        gapEnd = breaks.length;
+        length = 0;
+        attached = text;
+
+        if (text != null) {
+            insert(text, 0, text.length());
+            length = text.length();
+            text.setSpan(this, 0, text.length(), Spanned.SPAN_INCLUSIVE_INCLUSIVE | PRIORITY << Spanned.SPAN_PRIORITY_SHIFT);
+        }
+    }
+
+    int getLineCount() {
+        return getBreakCount() + 1;
+    }
+
+    int getLineStart(int line) {
+        return line > 0 ? getBreak(line - 1) + 1 : 0;
+    }
+
+    // Where the '\n' ending the line is, or the end of the text for the last line
+    int getLineEnd(int line) {
+        return line < getBreakCount() ? getBreak(line) : length;
+    }
+
+    // Line the offset is on, the '\n' belongs to the line it ends
+    int getLineForOffset(int offset) {
+        int low = 0;
+        int high = getBreakCount();
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (getBreak(middle) < offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low;
+    }
+
+    private int getBreakCount() {
+        return gapStart + breaks.length - gapEnd;
+    }
+
+    private int getBreak(int index) {
+        return index < gapStart ? breaks[index] : length - breaks[index + gapEnd - gapStart];
+    }
+
+    // Puts the gap right before the first break at or after offset
+    private void moveGap(int offset) {
+        while (gapStart > 0 && breaks[gapStart - 1] >= offset) {
+            breaks[--gapEnd] = length - breaks[--gapStart];
+        }
+
+        while (gapEnd < breaks.length && length - breaks[gapEnd] < offset) {
+            breaks[gapStart++] = length - breaks[gapEnd++];
+        }
+    }
+
+    // Adds the breaks in [start, end) of the text at the gap, in order
+    private void insert(CharSequence text, int start, int end) {
+        for (int i = start; i < end; i++) {
+            if (text.charAt(i) != '\n') {
+                continue;
+            }
+
+            if (gapStart == gapEnd) {
+                int[] grown = new int[breaks.length * 2];
+                int tail = breaks.length - gapEnd;
+                System.arraycopy(breaks, 0, grown, 0, gapStart);
+                System.arraycopy(breaks, gapEnd, grown, grown.length - tail, tail);
+                gapEnd = grown.length - tail;
+                breaks = grown;
+            }
+
+            breaks[gapStart++] = i;
+        }
+    }
+
+    @Override
+    public void beforeTextChanged(CharSequence text, int start, int count, int after) {
+    }
+
+    @Override
+    public void onTextChanged(CharSequence text, int start, int before, int count) {
+        moveGap(start);
+
+        // The breaks after the gap are kept from the end, the ones behind the edit stay as they are
+        while (gapEnd < breaks.length && length - breaks[gapEnd] < start + before) {
+            gapEnd++;
+        }
+
+        length += count - before;
+        insert(text, start, start + count);
+    }
+
+    @Override
+    public void afterTextChanged(Editable text) {
+    }
+}
@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.graphics.Typeface;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.BulletSpan;
+import android.text.style.CharacterStyle;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ImageSpan;
+import android.text.style.ParagraphStyle;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import io.github.mthli.knife.defaults.AligningDefault;
+import io.github.mthli.knife.defaults.HeadingTagDefault;
+import io.github.mthli.knife.spans.AlignmentSpan;
+
+// Single pass HTML serializer used by KnifeParser.toHtml().
+//
+// Every span is read once up front and sorted into open/close events per span family, so walking
+// the text never calls nextSpanTransition() or getSpans() again. The walk only moves forward,
+// which lets each SpanTrack keep a cursor instead of searching. Output is byte-identical to the
+// nested getSpans() implementation it replaces.
+final class KnifeSerializer {
+    private static final Map<Class<?>, SpanEmitter> EMITTERS = new ConcurrentHashMap<>();
+
+    private final Spanned text;
+    private final int end;
+
+    // First paragraph transition at or after end, blocks never run past it
+    private final int limit;
+
+    private final SpanTrack paragraphs;
+    private final SpanTrack bullets;
+    private final SpanTrack quotes;
+    private final SpanTrack characters;
+
+    KnifeSerializer(Spanned text) {
+        this(text, 0, text.length());
+    }
+
+    // Only spans touching [start, end] are read, blocks must then start inside that range
+    KnifeSerializer(Spanned text, int start, int end) {
+        this.text = text;
+        this.end = end;
+        this.limit = end < text.length() ? text.nextSpanTransition(end - 1, text.length(), ParagraphStyle.class) : end;
+
+        ParagraphStyle[] styles = text.getSpans(start, end, ParagraphStyle.class);
+        this.paragraphs = new SpanTrack(text, styles, ParagraphStyle.class);
+        this.bullets = new SpanTrack(text, styles, BulletSpan.class);
+        this.quotes = new SpanTrack(text, styles, QuoteSpan.class);
+        this.characters = new SpanTrack(text, text.getSpans(start, end, CharacterStyle.class), CharacterStyle.class);
+    }
+
+    void withinHtml(KnifeHtmlWriter out) throws IOException {
+        for (int i = 0; i < end; ) {
+            i = withinBlock(out, i, false);
+        }
+    }
+
+    // Writes the block starting at start and returns where the next one begins. A block is a run
+    // of the same paragraph styles; with singleLine, an unstyled block stops after its first line.
+    int withinBlock(KnifeHtmlWriter out, int start, boolean singleLine) throws IOException {
+        int next = paragraphs.nextTransition(start, limit);
+
+        int count = paragraphs.query(start, next);
+        if (count == 2) {
+            Object first = paragraphs.get(0);
+            Object second = paragraphs.get(1);
+            if (first instanceof BulletSpan && second instanceof QuoteSpan) {
+                // Let a <br> follow the BulletSpan or QuoteSpan end, so next++
+                withinBulletThenQuote(out, start, next++);
+                return next;
+            } else if (first instanceof QuoteSpan && second instanceof BulletSpan) {
+                withinQuoteThenBullet(out, start, next++);
+                return next;
+            }
+        } else if (count == 1) {
+            Object style = paragraphs.get(0);
+            if (style instanceof BulletSpan) {
+                withinBullet(out, start, next++);
+                return next;
+            } else if (style instanceof QuoteSpan) {
+                withinQuote(out, start, next++);
+                return next;
+            }
+        }
+
+        if (singleLine) {
+            next = lineEnd(start, Math.min(next, end));
+        }
+
+        withinContent(out, start, next);
+        return next;
+    }
+
+    // Writes the next line of an unstyled block that started before start
+    int withinLine(KnifeHtmlWriter out, int start) throws IOException {
+        int next = lineEnd(start, Math.min(paragraphs.nextTransition(start, limit), end));
+        withinContent(out, start, next);
+        return next;
+    }
+
+    // End of the line starting at start, including the line breaks that follow it
+    private int lineEnd(int start, int limit) {
+        int next = TextUtils.indexOf(text, '\n', start, limit);
+        if (next < 0) {
+            return limit;
+        }
+
+        while (next < limit && text.charAt(next) == '\n') {
+            next++;
+        }
+
+        return next;
+    }
+
+    private void withinBulletThenQuote(KnifeHtmlWriter out, int start, int end) throws IOException {
+        out.append("<ul><li>");
+        withinQuote(out, start, end);
+        out.append("</li>");
+        out.closeBlock("</ul>");
+    }
+
+    private void withinQuoteThenBullet(KnifeHtmlWriter out, int start, int end) throws IOException {
+        out.append("<blockquote>");
+        withinBullet(out, start, end);
+        out.closeBlock("</blockquote>");
+    }
+
+    private void withinBullet(KnifeHtmlWriter out, int start, int end) throws IOException {
+        out.append("<ul>");
+
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = bullets.nextTransition(i, end);
+
+            int count = bullets.query(i, next);
+            for (int j = 0; j < count; j++) {
+                out.append("<li>");
+            }
+
+            withinContent(out, i, next);
+            for (int j = 0; j < count; j++) {
+                out.append("</li>");
+            }
+        }
+
+        out.closeBlock("</ul>");
+    }
+
+    private void withinQuote(KnifeHtmlWriter out, int start, int end) throws IOException {
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = quotes.nextTransition(i, end);
+
+            int count = quotes.query(i, next);
+            for (int j = 0; j < count; j++) {
+                out.append("<blockquote>");
+            }
+
+            withinContent(out, i, next);
+            for (int j = 0; j < count; j++) {
+                out.closeBlock("</blockquote>");
+            }
+        }
+    }
+
+    private void withinContent(KnifeHtmlWriter out, int start, int end) throws IOException {
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = TextUtils.indexOf(text, '\n', i, end);
+            if (next < 0) {
+                next = end;
+            }
+
+            int nl = 0;
+            while (next < end && text.charAt(next) == '\n') {
+                next++;
+                nl++;
+            }
+
+            withinParagraph(out, i, next - nl, nl);
+        }
+    }
+
+    private void withinParagraph(KnifeHtmlWriter out, int start, int end, int nl) throws IOException {
+        int next;
+
+        for (int i = start; i < end; i = next) {
+            next = characters.nextTransition(i, end);
+
+            int count = characters.query(i, next);
+            boolean replaced = false;
+            for (int j = 0; j < count; j++) {
+                Object span = characters.get(j);
+                replaced |= emitterOf(span).open(out, span);
+            }
+
+            // Don't output the dummy character underlying the image.
+            if (!replaced) {
+                withinStyle(out, i, next);
+            }
+
+            for (int j = count - 1; j >= 0; j--) {
+                Object span = characters.get(j);
+                emitterOf(span).close(out, span);
+            }
+        }
+
+        for (int i = 0; i < nl; i++) {
+            out.lineBreak();
+        }
+    }
+
+    private void withinStyle(KnifeHtmlWriter out, int start, int end) throws IOException {
+        for (int i = start; i < end; i++) {
+            char c = text.charAt(i);
+
+            if (c == '<') {
+                out.append("&lt;");
+            } else if (c == '>') {
+                out.append("&gt;");
+            } else if (c == '&') {
+                out.append("&amp;");
+            } else if (c >= 0xD800 && c <= 0xDFFF) {
+                if (c < 0xDC00 && i + 1 < end) {
+                    char d = text.charAt(i + 1);
+                    if (d >= 0xDC00 && d <= 0xDFFF) {
+                        i++;
+                        int codepoint = 0x010000 | (int) c - 0xD800 << 10 | (int) d - 0xDC00;
+                        out.append("&#").append(codepoint).append(";");
+                    }
+                }
+            } else if (c > 0x7E || c < ' ') {
+                out.append("&#").append((int) c).append(";");
+            } else if (c == ' ') {
+                while (i + 1 < end && text.charAt(i + 1) == ' ') {
+                    out.append("&nbsp;");
+                    i++;
+                }
+
+                out.append(' ');
+            } else {
+                out.append(c);
+            }
+        }
+    }
+
+    private static SpanEmitter emitterOf(Object span) {
+        Class<?> kind = span.getClass();
+        SpanEmitter emitter = EMITTERS.get(kind);
+        if (emitter == null) {
+            emitter = SpanEmitter.resolve(span);
+            EMITTERS.put(kind, emitter);
+        }
+
+        return emitter;
+    }
+
+    // Spans of one family, sorted once into transitions and start events.
+    // Queries must move forward through the text, which is how the serializer walks it.
+    private static final class SpanTrack {
+        private final Object[] spans;
+        private final int[] starts;
+        private final int[] ends;
+        private final int[] order;
+        private final int[] transitions;
+
+        private int transitionCursor = 0;
+        private int orderCursor = 0;
+
+        // Indices of the spans that may still cover the current segment, in span order
+        private int[] active = new int[8];
+        private int activeCount = 0;
+
+        private Object[] result = new Object[8];
+
+        SpanTrack(Spanned text, Object[] candidates, Class<?> kind) {
+            int count = 0;
+            for (Object span : candidates) {
+                if (kind.isInstance(span)) {
+                    count++;
+                }
+            }
+
+            spans = new Object[count];
+            starts = new int[count];
+            ends = new int[count];
+            transitions = new int[count * 2];
+
+            long[] keys = new long[count];
+            int index = 0;
+            for (Object span : candidates) {
+                if (!kind.isInstance(span)) {
+                    continue;
+                }
+
+                int start = text.getSpanStart(span);
+                int end = text.getSpanEnd(span);
+                spans[index] = span;
+                starts[index] = start;
+                ends[index] = end;
+                transitions[index * 2] = start;
+                transitions[index * 2 + 1] = end;
+
+                // Sort by start, empty spans before the others at the same offset
+                keys[index] = ((long) start << 1 | (start == end ? 0 : 1)) << 32 | index;
+                index++;
+            }
+
+            Arrays.sort(keys);
+            Arrays.sort(transitions);
+
+            order = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = (int) keys[i];
+            }
+        }
+
+        // Same as Spanned.nextSpanTransition(start, limit, kind)
+        int nextTransition(int start, int limit) {
+            while (transitionCursor < transitions.length && transitions[transitionCursor] <= start) {
+                transitionCursor++;
+            }
+
+            if (transitionCursor < transitions.length && transitions[transitionCursor] < limit) {
+                return transitions[transitionCursor];
+            }
+
+            return limit;
+        }
+
+        // Same spans as Spanned.getSpans(start, end, kind), readable through get(int)
+        int query(int start, int end) {
+            while (orderCursor < order.length) {
+                int index = order[orderCursor];
+                int spanStart = starts[index];
+                if (spanStart < end || spanStart == ends[index] && spanStart <= end) {
+                    insert(index);
+                    orderCursor++;
+                } else {
+                    break;
+                }
+            }
+
+            int count = 0;
+            for (int i = 0; i < activeCount; i++) {
+                int index = active[i];
+                int spanStart = starts[index];
+                int spanEnd = ends[index];
+                if (spanStart != spanEnd ? spanEnd <= start : spanStart < start) {
+                    continue;
+                }
+
+                active[count++] = index;
+            }
+            activeCount = count;
+
+            if (result.length < count) {
+                result = new Object[Math.max(count, result.length * 2)];
+            }
+
+            for (int i = 0; i < count; i++) {
+                result[i] = spans[active[i]];
+            }
+
+            return count;
+        }
+
+        Object get(int i) {
+            return result[i];
+        }
+
+        private void insert(int index) {
+            if (activeCount == active.length) {
+                active = Arrays.copyOf(active, activeCount * 2);
+            }
+
+            int position = activeCount;
+            while (position > 0 && active[position - 1] > index) {
+                active[position] = active[position - 1];
+                position--;
+            }
+
+            active[position] = index;
+            activeCount++;
+        }
+    }
+
+    // Copy from https://android.googlesource.com/platform/frameworks/base/+/master/core/java/android/text/Html.java,
+    // remove some tag because we don't need them in Knife.
+    private enum SpanEmitter {
+        STYLE {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) throws IOException {
+                int style = ((StyleSpan) span).getStyle();
+
+                if ((style & Typeface.BOLD) != 0) {
+                    out.append("<b>");
+                }
+
+                if ((style & Typeface.ITALIC) != 0) {
+                    out.append("<i>");
+                }
+
+                return false;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) throws IOException {
+                int style = ((StyleSpan) span).getStyle();
+
+                if ((style & Typeface.BOLD) != 0) {
+                    out.append("</b>");
+                }
+
+                if ((style & Typeface.ITALIC) != 0) {
+                    out.append("</i>");
+                }
+            }
+        },
+
+        UNDERLINE {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("<u>");
+                return false;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("</u>");
+            }
+        },
+
+        // Use standard strikethrough tag <del> rather than <s> or <strike>
+        STRIKETHROUGH {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("<del>");
+                return false;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("</del>");
+            }
+        },
+
+        URL {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("<a href=\"");
+                out.append(((URLSpan) span).getURL());
+                out.append("\">");
+                return false;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("</a>");
+            }
+        },
+
+        IMAGE {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("<img width=\"100%\" src=\"");
+                out.append(((ImageSpan) span).getSource());
+                out.append("\">");
+                return true;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) {
+                // No closing tag for <img>
+            }
+        },
+
+        TEXT_COLOR {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("<font color='");
+                out.append(KnifeUtil.intColorToHex(((ForegroundColorSpan) span).getForegroundColor()));
+                out.append("'>");
+                return false;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("</font>");
+            }
+        },
+
+        HEADING_TAG {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) throws IOException {
+                String tag = headingTag(((RelativeSizeSpan) span).getSizeChange());
+                if (tag != null) {
+                    out.append("<").append(tag).append(">");
+                }
+
+                return false;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) throws IOException {
+                String tag = headingTag(((RelativeSizeSpan) span).getSizeChange());
+                if (tag != null) {
+                    out.append("</").append(tag).append(">");
+                }
+            }
+        },
+
+        TEXT_ALIGN {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) throws IOException {
+                AligningDefault aligningDefault = ((AlignmentSpan) span).getAlignmentData();
+                if (aligningDefault == AligningDefault.LEFT) {
+                    out.append("<p align='left'>");
+                } else if (aligningDefault == AligningDefault.RIGHT) {
+                    out.append("<p align='right'>");
+                } else if (aligningDefault == AligningDefault.CENTER) {
+                    out.append("<p align='center'>");
+                } else if (aligningDefault == AligningDefault.JUSTIFY) {
+                    out.append("<p align='justify'>");
+                }
+
+                return false;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) throws IOException {
+                out.append("</p>");
+            }
+        },
+
+        NONE {
+            @Override
+            boolean open(KnifeHtmlWriter out, Object span) {
+                return false;
+            }
+
+            @Override
+            void close(KnifeHtmlWriter out, Object span) {
+                // DO NOTHING HERE
+            }
+        };
+
+        // Returns true when the span replaces the text it covers
+        abstract boolean open(KnifeHtmlWriter out, Object span) throws IOException;
+
+        abstract void close(KnifeHtmlWriter out, Object span) throws IOException;
+
+        private static String headingTag(float size) {
+            if (size == HeadingTagDefault.H1.getValue()) {
+                return "h1";
+            } else if (size == HeadingTagDefault.H2.getValue()) {
+                return "h2";
+            } else if (size == HeadingTagDefault.H3.getValue()) {
+                return "h3";
+            } else if (size == HeadingTagDefault.H4.getValue()) {
+                return "h4";
+            } else if (size == HeadingTagDefault.H5.getValue()) {
+                return "h5";
+            } else if (size == HeadingTagDefault.H6.getValue()) {
+                return "h6";
+            } else {
+                return null;
+            }
+        }
+
+        static SpanEmitter resolve(Object span) {
+            if (span instanceof StyleSpan) {
+                return STYLE;
+            } else if (span instanceof UnderlineSpan) {
+                return UNDERLINE;
+            } else if (span instanceof StrikethroughSpan) {
+                return STRIKETHROUGH;
+            } else if (span instanceof URLSpan) {
+                return URL;
+            } else if (span instanceof ImageSpan) {
+                return IMAGE;
+            } else if (span instanceof ForegroundColorSpan) {
+                return TEXT_COLOR;
+            } else if (span instanceof RelativeSizeSpan) {
+                return HEADING_TAG;
+            } else if (span instanceof AlignmentSpan) {
+                return TEXT_ALIGN;
+            } else {
+                return NONE;
+            }
+        }
+    }
+}
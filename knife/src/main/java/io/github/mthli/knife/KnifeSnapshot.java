@@ -0,0 +1,335 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package io.github.mthli.knife;
+
+import android.text.GetChars;
+import android.text.Spanned;
+import android.text.TextUtils;
+import android.text.style.CharacterStyle;
+import android.text.style.ParagraphStyle;
+
+import java.lang.reflect.Array;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+// Immutable view of a Spanned, safe to read from any thread.
+//
+// Taking it costs one getSpans() call, the span objects themselves are shared and the text is
+// copy on write. The snapshot reads the live text until KnifeHtmlCache sees it is about to change
+// and calls detach(), only then is the text copied, and only if the snapshot is still being read.
+// Unlike new SpannableStringBuilder(text) no span is set again and no watcher runs, and only the
+// formatting spans the serializer reads are kept.
+//
+// Span lookups go through a per type index built on first use: the spans sorted by start, their
+// ends sorted, and a max end tree over the start order, so getSpans() and nextSpanTransition() are
+// binary searches plus the spans found.
+final class KnifeSnapshot implements Spanned, GetChars {
+    // Chars the reading thread copies out of the text at a time
+    private static final int CHUNK_LENGTH = 4096;
+
+    private final Object lock = new Object();
+    private final int length;
+    private final Object[] spans;
+    private final int[] starts;
+    private final int[] ends;
+    private final int[] flags;
+
+    // The live text until detach(), guarded by lock
+    private CharSequence text;
+    private boolean released = false;
+
+    // Only touched by the reading thread
+    private final char[] chunk = new char[CHUNK_LENGTH];
+    private int chunkStart = 0;
+    private int chunkEnd = 0;
+    private Map<Object, Integer> indices;
+    private final Map<Class<?>, Index> indexes = new HashMap<>();
+
+    // A text nobody detaches the snapshot from is copied right away
+    KnifeSnapshot(Spanned source, boolean watched) {
+        Object[] all = source.getSpans(0, source.length(), Object.class);
+
+        int count = 0;
+        for (Object span : all) {
+            if (span instanceof CharacterStyle || span instanceof ParagraphStyle) {
+                all[count++] = span;
+            }
+        }
+
+        text = watched ? source : source.toString();
+        length = source.length();
+        spans = new Object[count];
+        starts = new int[count];
+        ends = new int[count];
+        flags = new int[count];
+
+        for (int i = 0; i < count; i++) {
+            spans[i] = all[i];
+            starts[i] = source.getSpanStart(all[i]);
+            ends[i] = source.getSpanEnd(all[i]);
+            flags[i] = source.getSpanFlags(all[i]);
+        }
+    }
+
+    // On the UI thread right before the live text changes
+    void detach() {
+        synchronized (lock) {
+            if (!released && !(text instanceof String)) {
+                text = text.toString();
+            }
+        }
+    }
+
+    // Done reading, the text may change freely
+    void release() {
+        synchronized (lock) {
+            released = true;
+        }
+    }
+
+    boolean isReleased() {
+        synchronized (lock) {
+            return released;
+        }
+    }
+
+    // Same overlap rules as SpannableStringBuilder.getSpans(), in the same order
+    @Override
+    @SuppressWarnings("unchecked")
+    public <T> T[] getSpans(int start, int end, Class<T> type) {
+        Index index = index(type != null ? type : Object.class);
+        int count = index.find(start, end);
+
+        T[] result = (T[]) Array.newInstance(type != null ? type : Object.class, count);
+        for (int i = 0; i < count; i++) {
+            result[i] = (T) spans[index.found[i]];
+        }
+
+        return result;
+    }
+
+    @Override
+    public int getSpanStart(Object tag) {
+        int index = indexOf(tag);
+        return index >= 0 ? starts[index] : -1;
+    }
+
+    @Override
+    public int getSpanEnd(Object tag) {
+        int index = indexOf(tag);
+        return index >= 0 ? ends[index] : -1;
+    }
+
+    @Override
+    public int getSpanFlags(Object tag) {
+        int index = indexOf(tag);
+        return index >= 0 ? flags[index] : 0;
+    }
+
+    @Override
+    public int nextSpanTransition(int start, int limit, Class type) {
+        Index index = index(type != null ? type : Object.class);
+        return Math.min(limit, Math.min(after(index.sortedStarts, start), after(index.sortedEnds, start)));
+    }
+
+    // First value above offset in the sorted values, or Integer.MAX_VALUE
+    private static int after(int[] sorted, int offset) {
+        int low = 0;
+        int high = sorted.length;
+        while (low < high) {
+            int middle = (low + high) >>> 1;
+            if (sorted[middle] <= offset) {
+                low = middle + 1;
+            } else {
+                high = middle;
+            }
+        }
+
+        return low < sorted.length ? sorted[low] : Integer.MAX_VALUE;
+    }
+
+    private Index index(Class<?> type) {
+        Index index = indexes.get(type);
+        if (index == null) {
+            index = new Index(type);
+            indexes.put(type, index);
+        }
+
+        return index;
+    }
+
+    private int indexOf(Object tag) {
+        if (indices == null) {
+            indices = new IdentityHashMap<>(spans.length);
+            for (int i = 0; i < spans.length; i++) {
+                indices.put(spans[i], i);
+            }
+        }
+
+        Integer index = indices.get(tag);
+        return index != null ? index : -1;
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public char charAt(int index) {
+        if (index < chunkStart || index >= chunkEnd) {
+            if (index < 0 || index >= length) {
+                throw new IndexOutOfBoundsException("index " + index + " of " + length);
+            }
+
+            chunkStart = index;
+            chunkEnd = Math.min(length, index + CHUNK_LENGTH);
+            getChars(chunkStart, chunkEnd, chunk, 0);
+        }
+
+        return chunk[index - chunkStart];
+    }
+
+    @Override
+    public CharSequence subSequence(int start, int end) {
+        synchronized (lock) {
+            return TextUtils.substring(text, start, end);
+        }
+    }
+
+    @Override
+    public void getChars(int start, int end, char[] dest, int destoff) {
+        synchronized (lock) {
+            TextUtils.getChars(text, start, end, dest, destoff);
+        }
+    }
+
+    @Override
+    public String toString() {
+        synchronized (lock) {
+            return text.toString();
+        }
+    }
+
+    // The spans of one type
+    private final class Index {
+        // Span indices sorted by start, the starts in that order and all ends sorted
+        private final int[] order;
+        private final int[] sortedStarts;
+        private final int[] sortedEnds;
+
+        // Max end over each subtree of the start order, leaves from tree.length / 2
+        private final int[] tree;
+        private final int leaves;
+
+        // Span indices of the last find(), in span order
+        private int[] found = new int[8];
+
+        private Index(Class<?> type) {
+            int count = 0;
+            long[] keys = new long[spans.length];
+            for (int i = 0; i < spans.length; i++) {
+                if (type.isInstance(spans[i])) {
+                    keys[count++] = (long) starts[i] << 32 | i;
+                }
+            }
+
+            Arrays.sort(keys, 0, count);
+
+            order = new int[count];
+            sortedStarts = new int[count];
+            sortedEnds = new int[count];
+            for (int i = 0; i < count; i++) {
+                order[i] = (int) keys[i];
+                sortedStarts[i] = starts[order[i]];
+                sortedEnds[i] = ends[order[i]];
+            }
+
+            Arrays.sort(sortedEnds);
+
+            int size = 1;
+            while (size < count) {
+                size *= 2;
+            }
+
+            leaves = size;
+            tree = new int[size * 2];
+            Arrays.fill(tree, -1);
+            for (int i = 0; i < count; i++) {
+                tree[size + i] = ends[order[i]];
+            }
+
+            for (int node = size - 1; node > 0; node--) {
+                tree[node] = Math.max(tree[node * 2], tree[node * 2 + 1]);
+            }
+        }
+
+        // Fills found with the spans getSpans(start, end) returns, returns how many
+        private int find(int start, int end) {
+            // Only the spans starting at or before end can overlap
+            int limit = startingBy(end);
+            int count = find(1, 0, leaves, limit, start, end, 0);
+
+            Arrays.sort(found, 0, count);
+            return count;
+        }
+
+        // Number of spans starting at or before end
+        private int startingBy(int end) {
+            int low = 0;
+            int high = sortedStarts.length;
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (sortedStarts[middle] <= end) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+
+            return low;
+        }
+
+        private int find(int node, int low, int high, int limit, int start, int end, int count) {
+            if (low >= limit || tree[node] < start) {
+                return count;
+            }
+
+            if (high - low > 1) {
+                int middle = (low + high) >>> 1;
+                count = find(node * 2, low, middle, limit, start, end, count);
+                return find(node * 2 + 1, middle, high, limit, start, end, count);
+            }
+
+            int span = order[low];
+            int spanStart = starts[span];
+            int spanEnd = ends[span];
+            if (spanStart != spanEnd && start != end && (spanStart == end || spanEnd == start)) {
+                return count;
+            }
+
+            if (count == found.length) {
+                found = Arrays.copyOf(found, count * 2);
+            }
+
+            found[count] = span;
+            return count + 1;
+        }
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * Copyright (C) 2015 Matthew Lee
+ * Copyright (C) 2007 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package io.github.mthli.knife;
+
+import android.graphics.drawable.ColorDrawable;
+import android.graphics.drawable.Drawable;
+import android.text.Html;
+import android.text.style.BulletSpan;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.ImageSpan;
+import android.text.style.QuoteSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StrikethroughSpan;
+import android.text.style.StyleSpan;
+import android.text.style.URLSpan;
+import android.text.style.UnderlineSpan;
+
+import io.github.mthli.knife.spans.AlignmentSpan;
+
+// The spans of a KnifeDocument, shared by KnifeParser.fromHtml() and KnifeText.
+//
+// Out of the box every span is a framework one, as Html.fromHtml() would give. KnifeText overrides
+// the link, bullet and quote spans with its styled Knife spans.
+class KnifeSpanFactory implements KnifeDocument.SpanFactory {
+    private final Html.ImageGetter imageGetter;
+
+    KnifeSpanFactory(Html.ImageGetter imageGetter) {
+        this.imageGetter = imageGetter;
+    }
+
+    @Override
+    public final Object create(KnifeDocument document, int index) {
+        int value = document.getSpanValue(index);
+
+        switch (document.getSpanType(index)) {
+            case KnifeDocument.SPAN_STYLE:
+                return new StyleSpan(value);
+            case KnifeDocument.SPAN_UNDERLINE:
+                return new UnderlineSpan();
+            case KnifeDocument.SPAN_STRIKETHROUGH:
+                return new StrikethroughSpan();
+            case KnifeDocument.SPAN_LINK:
+                return link(document.getSpanString(index));
+            case KnifeDocument.SPAN_IMAGE:
+                String source = document.getSpanString(index);
+                Drawable drawable = imageGetter != null ? imageGetter.getDrawable(source) : null;
+                return new ImageSpan(drawable != null ? drawable : new ColorDrawable(), source);
+            case KnifeDocument.SPAN_TEXT_COLOR:
+                return new ForegroundColorSpan(value);
+            case KnifeDocument.SPAN_HEADING_TAG:
+                return new RelativeSizeSpan(Float.intBitsToFloat(value));
+            case KnifeDocument.SPAN_TEXT_ALIGN:
+                return new AlignmentSpan(value);
+            case KnifeDocument.SPAN_BULLET:
+                return bullet();
+            case KnifeDocument.SPAN_QUOTE:
+                return quote();
+            default:
+                return null;
+        }
+    }
+
+    protected Object link(String url) {
+        return new URLSpan(url);
+    }
+
+    protected Object bullet() {
+        return new BulletSpan();
+    }
+
+    protected Object quote() {
+        return new QuoteSpan();
+    }
+}
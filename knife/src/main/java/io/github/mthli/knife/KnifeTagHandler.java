@@ -29,6 +29,11 @@ import android.text.style.StrikethroughSpan;
 
 import org.xml.sax.XMLReader;
 
+/**
+ * @deprecated KnifeParser.fromHtml() no longer goes through Html.fromHtml(), so nothing uses this.
+ * Call KnifeParser.fromHtml() instead, it reads lists and strikethrough in linear time.
+ */
+@Deprecated
 public class KnifeTagHandler implements Html.TagHandler {
     private static final String BULLET_LI = "li";
     private static final String STRIKETHROUGH_S = "s";
@@ -26,8 +26,11 @@ import android.graphics.Paint;
 import android.graphics.PorterDuff;
 import android.graphics.Rect;
 import android.graphics.Typeface;
+import android.graphics.drawable.BitmapDrawable;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.text.Editable;
+import android.text.Html;
 import android.text.Spannable;
 import android.text.SpannableString;
 import android.text.SpannableStringBuilder;
@@ -36,36 +39,58 @@ import android.text.TextUtils;
 import android.text.TextWatcher;
 import android.text.style.BulletSpan;
 import android.text.style.ForegroundColorSpan;
-import android.text.style.ParagraphStyle;
+import android.text.style.ImageSpan;
 import android.text.style.QuoteSpan;
 import android.text.style.RelativeSizeSpan;
 import android.text.style.StrikethroughSpan;
 import android.text.style.StyleSpan;
 import android.text.style.URLSpan;
 import android.text.style.UnderlineSpan;
+import android.os.Build;
 import android.util.AttributeSet;
+import android.util.SparseArray;
+import android.util.DisplayMetrics;
 import android.view.inputmethod.InputMethodManager;
 import android.widget.EditText;
 
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 
-import com.bumptech.glide.request.target.SimpleTarget;
+import com.bumptech.glide.load.resource.bitmap.DownsampleStrategy;
+import com.bumptech.glide.request.target.CustomTarget;
+import com.bumptech.glide.request.target.Target;
 import com.bumptech.glide.request.transition.Transition;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
 
 import io.github.mthli.knife.defaults.AligningDefault;
 import io.github.mthli.knife.defaults.HeadingTagDefault;
 import io.github.mthli.knife.glide.GlideApp;
 import io.github.mthli.knife.glide.GlideImageGetter;
+import io.github.mthli.knife.glide.GlideRequest;
 import io.github.mthli.knife.glide.GlideRequests;
+import io.github.mthli.knife.glide.UrlDrawable;
+import io.github.mthli.knife.listener.FormatListener;
+import io.github.mthli.knife.listener.HtmlListener;
 import io.github.mthli.knife.spans.AlignmentSpan;
 import io.github.mthli.knife.spans.ImageCustomSpan;
 import io.github.mthli.knife.type.MediaImageType;
-import io.github.mthli.knife.util.BitmapUtil;
 
 public class KnifeText extends EditText implements TextWatcher {
     public static final int FORMAT_BOLD = 0x01;
@@ -79,11 +104,22 @@ public class KnifeText extends EditText implements TextWatcher {
     public static final int HEADING_TAG = 0x09;
     public static final int TEXT_ALIGN = 0x10;
 
+    private static final int[] FORMATS = {
+            FORMAT_BOLD, FORMAT_ITALIC, FORMAT_UNDERLINED, FORMAT_STRIKETHROUGH, FORMAT_BULLET,
+            FORMAT_QUOTE, FORMAT_LINK, TEXT_COLOR, HEADING_TAG, TEXT_ALIGN
+    };
+
+    // Characters appended per frame by fromHtmlProgressive()
+    private static final int PROGRESSIVE_CHUNK_LENGTH = 16 * 1024;
+
     private int bulletColor = 0;
     private int bulletRadius = 0;
     private int bulletGapWidth = 0;
     private boolean historyEnable = true;
     private int historySize = 100;
+    private int historyGroupInterval = 0;
+    private boolean historyGroupWords = true;
+    private int historyMaxBytes = 0;
     private int linkColor = 0;
     private boolean linkUnderline = true;
     private int quoteColor = 0;
@@ -93,13 +129,79 @@ public class KnifeText extends EditText implements TextWatcher {
     private boolean isLinePadding = false;
     private int lineColor = 0;
 
-    private final List<Editable> historyList = new LinkedList<>();
+    private KnifeHistory history;
     private boolean historyWorking = false;
-    private int historyCursor = 0;
 
-    private SpannableStringBuilder inputBefore;
-    private Editable inputLast;
     private GlideRequests glideRequests;
+    private KnifeHtmlCache htmlCache;
+    private KnifeLines lines;
+    private KnifeFormats formats;
+    private Runnable progressiveLoader;
+    private Future<KnifeDocument> documentLoader;
+    private FormatListener formatListener;
+
+    // Built for setText() by this view alone, the Editable factory takes it instead of a copy
+    private Editable adoptedText;
+
+    // Formats toggled with nothing selected, for the text typed from where each was toggled up to
+    // the cursor at typingAt. A format mapped to null is toggled off.
+    private Map<FormatHandler<?>, Object> typingStyle;
+    private Map<FormatHandler<?>, Integer> typingFrom;
+    private int typingAt = -1;
+
+    // By Typeface style
+    private final FormatHandler<StyleSpan>[] styleFormats = styleFormats();
+
+    private final FormatHandler<ForegroundColorSpan> textColorFormat = new FormatHandler<ForegroundColorSpan>(ForegroundColorSpan.class) {
+        @Override
+        protected ForegroundColorSpan copy(ForegroundColorSpan span) {
+            return new ForegroundColorSpan(span.getForegroundColor());
+        }
+    };
+
+    private final FormatHandler<RelativeSizeSpan> headingTagFormat = new FormatHandler<RelativeSizeSpan>(RelativeSizeSpan.class) {
+        @Override
+        protected RelativeSizeSpan copy(RelativeSizeSpan span) {
+            return new RelativeSizeSpan(span.getSizeChange());
+        }
+    };
+
+    private final FormatHandler<AlignmentSpan> aligningFormat = new FormatHandler<AlignmentSpan>(AlignmentSpan.class) {
+        @Override
+        protected AlignmentSpan copy(AlignmentSpan span) {
+            return new AlignmentSpan(span.getValue());
+        }
+    };
+
+    private final FormatHandler<UnderlineSpan> underlineFormat = new FormatHandler<UnderlineSpan>(UnderlineSpan.class) {
+        @Override
+        protected UnderlineSpan copy(UnderlineSpan span) {
+            return new UnderlineSpan();
+        }
+    };
+
+    private final FormatHandler<StrikethroughSpan> strikethroughFormat = new FormatHandler<StrikethroughSpan>(StrikethroughSpan.class) {
+        @Override
+        protected StrikethroughSpan copy(StrikethroughSpan span) {
+            return new StrikethroughSpan();
+        }
+    };
+
+    // Removing a link removes every link it touches as a whole
+    private final FormatHandler<URLSpan> linkFormat = new FormatHandler<URLSpan>(URLSpan.class) {
+        @Override
+        protected URLSpan copy(URLSpan span) {
+            return new KnifeURLSpan(span.getURL(), linkColor, linkUnderline);
+        }
+
+        @Override
+        protected boolean isSplittable() {
+            return false;
+        }
+    };
+
+    private final SparseArray<FormatHandler<?>> customFormats = new SparseArray<>();
+    private Runnable formatNotifier;
 
     private Canvas canvas;
     private Rect mRect;
@@ -135,6 +237,9 @@ public class KnifeText extends EditText implements TextWatcher {
         bulletGapWidth = array.getDimensionPixelSize(R.styleable.KnifeText_bulletGapWidth, 0);
         historyEnable = array.getBoolean(R.styleable.KnifeText_historyEnable, true);
         historySize = array.getInt(R.styleable.KnifeText_historySize, 100);
+        historyGroupInterval = array.getInt(R.styleable.KnifeText_historyGroupInterval, 0);
+        historyGroupWords = array.getBoolean(R.styleable.KnifeText_historyGroupWords, true);
+        historyMaxBytes = array.getInt(R.styleable.KnifeText_historyMaxBytes, 0);
         linkColor = array.getColor(R.styleable.KnifeText_linkColor, 0);
         linkUnderline = array.getBoolean(R.styleable.KnifeText_linkUnderline, true);
         quoteColor = array.getColor(R.styleable.KnifeText_quoteColor, 0);
@@ -147,9 +252,51 @@ public class KnifeText extends EditText implements TextWatcher {
 
         setLine(isLine);
 
+        setEditableFactory(new Editable.Factory() {
+            @Override
+            public Editable newEditable(CharSequence source) {
+                return source == adoptedText ? adoptedText : super.newEditable(source);
+            }
+        });
+
+        htmlCache = new KnifeHtmlCache();
+        htmlCache.attach(getEditableText());
+
+        lines = new KnifeLines();
+        lines.attach(getEditableText());
+
+        formats = new KnifeFormats();
+        formats.attach(getEditableText());
+
+        typingStyle = new IdentityHashMap<>();
+        typingFrom = new IdentityHashMap<>();
+
         if (historyEnable && historySize <= 0) {
             throw new IllegalArgumentException("historySize must > 0");
         }
+
+        if (historyGroupInterval < 0) {
+            throw new IllegalArgumentException("historyGroupInterval must >= 0");
+        }
+
+        if (historyMaxBytes < 0) {
+            throw new IllegalArgumentException("historyMaxBytes must >= 0");
+        }
+
+        history = new KnifeHistory(historySize, historyGroupInterval, historyGroupWords);
+        history.setImageLoader(new KnifeHistory.ImageLoader() {
+            @Override
+            public ImageSpan load(String source, MediaImageType mediaImageType, int width, int height) {
+                return knifeImage(source, mediaImageType, width, height);
+            }
+        });
+        if (historyMaxBytes > 0) {
+            history.spill(getContext().getCacheDir(), historyMaxBytes, knifeSpans(new GlideImageGetter(this, glideRequests)));
+        }
+
+        if (historyEnable) {
+            history.attach(getEditableText());
+        }
     }
 
     @Override
@@ -165,6 +312,35 @@ public class KnifeText extends EditText implements TextWatcher {
         removeTextChangedListener(this);
     }
 
+    @Override
+    public void setText(CharSequence text, BufferType type) {
+        // The chunks still to come belong to the text being replaced
+        if (progressiveLoader != null) {
+            removeCallbacks(progressiveLoader);
+            progressiveLoader = null;
+        }
+
+        // So is a document still being parsed
+        if (documentLoader != null) {
+            documentLoader.cancel(false);
+            documentLoader = null;
+        }
+
+        super.setText(text, type);
+
+        // Called from the TextView constructor before init()
+        if (htmlCache != null) {
+            htmlCache.attach(getEditableText());
+            lines.attach(getEditableText());
+            formats.attach(getEditableText());
+            clearTypingStyle();
+        }
+
+        if (history != null && historyEnable) {
+            history.attach(getEditableText());
+        }
+    }
+
     //https://stackoverflow.com/questions/21243969/drawing-background-lines-in-an-edittext-that-uses-a-custom-font-or-typeface
     @SuppressLint("DrawAllocation")
     @Override
@@ -251,501 +427,261 @@ public class KnifeText extends EditText implements TextWatcher {
     // StyleSpan ===================================================================================
 
     public void bold(boolean valid) {
-        if (valid) {
-            styleValid(Typeface.BOLD, getSelectionStart(), getSelectionEnd());
-        } else {
-            styleInvalid(Typeface.BOLD, getSelectionStart(), getSelectionEnd());
+        if (setTypingStyle(styleFormats[Typeface.BOLD], valid ? new StyleSpan(Typeface.BOLD) : null)) {
+            return;
         }
-    }
 
-    public void italic(boolean valid) {
-        if (valid) {
-            styleValid(Typeface.ITALIC, getSelectionStart(), getSelectionEnd());
-        } else {
-            styleInvalid(Typeface.ITALIC, getSelectionStart(), getSelectionEnd());
+        history.beginGroup();
+        try {
+            if (valid) {
+                styleValid(Typeface.BOLD, getSelectionStart(), getSelectionEnd());
+            } else {
+                styleInvalid(Typeface.BOLD, getSelectionStart(), getSelectionEnd());
+            }
+        } finally {
+            history.endGroup();
         }
     }
 
-    protected void styleValid(int style, int start, int end) {
-        switch (style) {
-            case Typeface.NORMAL:
-            case Typeface.BOLD:
-            case Typeface.ITALIC:
-            case Typeface.BOLD_ITALIC:
-                break;
-            default:
-                return;
-        }
-
-        if (start >= end) {
+    public void italic(boolean valid) {
+        if (setTypingStyle(styleFormats[Typeface.ITALIC], valid ? new StyleSpan(Typeface.ITALIC) : null)) {
             return;
         }
 
-        getEditableText().setSpan(new StyleSpan(style), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        history.beginGroup();
+        try {
+            if (valid) {
+                styleValid(Typeface.ITALIC, getSelectionStart(), getSelectionEnd());
+            } else {
+                styleInvalid(Typeface.ITALIC, getSelectionStart(), getSelectionEnd());
+            }
+        } finally {
+            history.endGroup();
+        }
     }
 
-    protected void styleInvalid(int style, int start, int end) {
-        switch (style) {
-            case Typeface.NORMAL:
-            case Typeface.BOLD:
-            case Typeface.ITALIC:
-            case Typeface.BOLD_ITALIC:
-                break;
-            default:
-                return;
+    protected void styleValid(int style, int start, int end) {
+        FormatHandler<StyleSpan> format = styleFormat(style);
+        if (format != null) {
+            format.apply(getEditableText(), new StyleSpan(style), start, end);
         }
+    }
 
-        if (start >= end) {
-            return;
+    protected void styleInvalid(int style, int start, int end) {
+        FormatHandler<StyleSpan> format = styleFormat(style);
+        if (format != null) {
+            format.remove(getEditableText(), start, end);
         }
+    }
 
-        StyleSpan[] spans = getEditableText().getSpans(start, end, StyleSpan.class);
-        List<KnifePart> list = new ArrayList<>();
+    protected boolean containStyle(int style, int start, int end) {
+        FormatHandler<StyleSpan> format = styleFormat(style);
+        return format != null && containFormat(format, start, end);
+    }
 
-        for (StyleSpan span : spans) {
-            if (span.getStyle() == style) {
-                list.add(new KnifePart(getEditableText().getSpanStart(span), getEditableText().getSpanEnd(span)));
-                getEditableText().removeSpan(span);
-            }
-        }
+    // Null for anything but a Typeface style
+    private FormatHandler<StyleSpan> styleFormat(int style) {
+        return style >= 0 && style < styleFormats.length ? styleFormats[style] : null;
+    }
 
-        for (KnifePart part : list) {
-            if (part.isValid()) {
-                if (part.getStart() < start) {
-                    styleValid(style, part.getStart(), start);
+    @SuppressWarnings("unchecked")
+    private static FormatHandler<StyleSpan>[] styleFormats() {
+        FormatHandler<StyleSpan>[] formats = new FormatHandler[4];
+        for (int i = 0; i < formats.length; i++) {
+            final int style = i;
+            formats[i] = new FormatHandler<StyleSpan>(StyleSpan.class) {
+                @Override
+                protected StyleSpan copy(StyleSpan span) {
+                    return new StyleSpan(style);
                 }
 
-                if (part.getEnd() > end) {
-                    styleValid(style, end, part.getEnd());
+                @Override
+                protected boolean matches(StyleSpan span) {
+                    return span.getStyle() == style;
                 }
-            }
+            };
         }
+
+        return formats;
     }
 
-    protected boolean containStyle(int style, int start, int end) {
-        switch (style) {
-            case Typeface.NORMAL:
-            case Typeface.BOLD:
-            case Typeface.ITALIC:
-            case Typeface.BOLD_ITALIC:
-                break;
-            default:
-                return false;
-        }
+    // TextColor ===============================================================================
 
-        if (start > end) {
-            return false;
+    public void textColor(String colorHex, boolean valid) {
+        if (setTypingStyle(textColorFormat, valid ? new ForegroundColorSpan(Color.parseColor(colorHex)) : null)) {
+            return;
         }
 
-        if (start == end) {
-            if (start - 1 < 0 || start + 1 > getEditableText().length()) {
-                return false;
+        history.beginGroup();
+        try {
+            if (valid) {
+                styleTextColorValid(colorHex, getSelectionStart(), getSelectionEnd());
             } else {
-                StyleSpan[] before = getEditableText().getSpans(start - 1, start, StyleSpan.class);
-                StyleSpan[] after = getEditableText().getSpans(start, start + 1, StyleSpan.class);
-                return before.length > 0 && after.length > 0 && before[0].getStyle() == style && after[0].getStyle() == style;
-            }
-        } else {
-            StringBuilder builder = new StringBuilder();
-
-            // Make sure no duplicate characters be added
-            for (int i = start; i < end; i++) {
-                StyleSpan[] spans = getEditableText().getSpans(i, i + 1, StyleSpan.class);
-                for (StyleSpan span : spans) {
-                    if (span.getStyle() == style) {
-                        builder.append(getEditableText().subSequence(i, i + 1));
-                        break;
-                    }
-                }
+                styleTextColorInvalid(getSelectionStart(), getSelectionEnd());
             }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
-        }
-    }
-
-    // TextColor ===============================================================================
-
-    public void textColor(String colorHex, boolean valid) {
-        if (valid) {
-            styleTextColorValid(colorHex, getSelectionStart(), getSelectionEnd());
-        } else {
-            styleTextColorInvalid(getSelectionStart(), getSelectionEnd());
+        } finally {
+            history.endGroup();
         }
     }
 
     protected void styleTextColorValid(String colorHex, int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        getEditableText().setSpan(new ForegroundColorSpan(Color.parseColor(colorHex)), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        styleTextColorValid(Color.parseColor(colorHex), start, end);
     }
 
     protected void styleTextColorValid(int color, int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        getEditableText().setSpan(new ForegroundColorSpan(color), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        textColorFormat.apply(getEditableText(), new ForegroundColorSpan(color), start, end);
     }
 
     protected void styleTextColorInvalid(int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        ForegroundColorSpan[] spans = getEditableText().getSpans(start, end, ForegroundColorSpan.class);
-        List<KnifePart> list = new ArrayList<>();
-
-        for (ForegroundColorSpan span : spans) {
-            list.add(new KnifePart(span.getForegroundColor(), getEditableText().getSpanStart(span), getEditableText().getSpanEnd(span)));
-            getEditableText().removeSpan(span);
-        }
-
-        for (KnifePart part : list) {
-            if (part.isValid()) {
-                if (part.getStart() < start) {
-                    styleTextColorValid(part.getValue(), part.getStart(), start);
-                }
-
-                if (part.getEnd() > end) {
-                    styleTextColorValid(part.getValue(), end, part.getEnd());
-                }
-            }
-        }
+        textColorFormat.remove(getEditableText(), start, end);
     }
 
     protected boolean containTextColor(int start, int end) {
-        if (start > end) {
-            return false;
-        }
-
-        if (start == end) {
-            if (start - 1 < 0 || start + 1 > getEditableText().length()) {
-                return false;
-            } else {
-                ForegroundColorSpan[] before = getEditableText().getSpans(start - 1, start, ForegroundColorSpan.class);
-                ForegroundColorSpan[] after = getEditableText().getSpans(start, start + 1, ForegroundColorSpan.class);
-                return before.length > 0 && after.length > 0;
-            }
-        } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, ForegroundColorSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1));
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
-        }
+        return containFormat(textColorFormat, start, end);
     }
 
 
     // Heading ===============================================================================
 
     public void headingTag(HeadingTagDefault headingTagDefault, boolean valid) {
-        if (valid) {
-            styleHeadingTagValid(headingTagDefault, getSelectionStart(), getSelectionEnd());
-        } else {
-            styleHeadingTagInvalid(getSelectionStart(), getSelectionEnd());
+        history.beginGroup();
+        try {
+            if (valid) {
+                styleHeadingTagValid(headingTagDefault, getSelectionStart(), getSelectionEnd());
+            } else {
+                styleHeadingTagInvalid(getSelectionStart(), getSelectionEnd());
+            }
+        } finally {
+            history.endGroup();
         }
     }
 
     protected void styleHeadingTagValid(HeadingTagDefault headingTagDefault, int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        getEditableText().setSpan(new RelativeSizeSpan(headingTagDefault.getValue()), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        headingTagFormat.apply(getEditableText(), new RelativeSizeSpan(headingTagDefault.getValue()), start, end);
     }
 
     protected void styleHeadingTagInvalid(int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        RelativeSizeSpan[] spans = getEditableText().getSpans(start, end, RelativeSizeSpan.class);
-        List<KnifePart> list = new ArrayList<>();
-
-        for (RelativeSizeSpan span : spans) {
-            list.add(new KnifePart(span.getSizeChange(), getEditableText().getSpanStart(span), getEditableText().getSpanEnd(span)));
-            getEditableText().removeSpan(span);
-        }
-
-        for (KnifePart part : list) {
-            if (part.isValid()) {
-                if (part.getStart() < start) {
-                    styleHeadingTagValid(HeadingTagDefault.get(part.getValueFloat()), part.getStart(), start);
-                }
-
-                if (part.getEnd() > end) {
-                    styleHeadingTagValid(HeadingTagDefault.get(part.getValueFloat()), end, part.getEnd());
-                }
-            }
-        }
+        headingTagFormat.remove(getEditableText(), start, end);
     }
 
     protected boolean containHeadingTag(int start, int end) {
-        if (start > end) {
-            return false;
-        }
-
-        if (start == end) {
-            if (start - 1 < 0 || start + 1 > getEditableText().length()) {
-                return false;
-            } else {
-                RelativeSizeSpan[] before = getEditableText().getSpans(start - 1, start, RelativeSizeSpan.class);
-                RelativeSizeSpan[] after = getEditableText().getSpans(start, start + 1, RelativeSizeSpan.class);
-                return before.length > 0 && after.length > 0;
-            }
-        } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, RelativeSizeSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1));
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
-        }
+        return containFormat(headingTagFormat, start, end);
     }
 
     // Heading ===============================================================================
 
     public void aligning(AligningDefault aligningDefault, boolean valid) {
-        if (valid) {
-            styleAligningValid(aligningDefault, getSelectionStart(), getSelectionEnd());
-        } else {
-            styleAligningInvalid(getSelectionStart(), getSelectionEnd());
+        history.beginGroup();
+        try {
+            if (valid) {
+                styleAligningValid(aligningDefault, getSelectionStart(), getSelectionEnd());
+            } else {
+                styleAligningInvalid(getSelectionStart(), getSelectionEnd());
+            }
+        } finally {
+            history.endGroup();
         }
     }
 
     protected void styleAligningValid(AligningDefault aligningDefault, int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        getEditableText().setSpan(new AlignmentSpan(aligningDefault.getValue()), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        aligningFormat.apply(getEditableText(), new AlignmentSpan(aligningDefault.getValue()), start, end);
     }
 
     protected void styleAligningInvalid(int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        AlignmentSpan[] spans = getEditableText().getSpans(start, end, AlignmentSpan.class);
-        List<KnifePart> list = new ArrayList<>();
-
-        for (AlignmentSpan span : spans) {
-            list.add(new KnifePart(span.getValue(), getEditableText().getSpanStart(span), getEditableText().getSpanEnd(span)));
-            getEditableText().removeSpan(span);
-        }
-
-        for (KnifePart part : list) {
-            if (part.isValid()) {
-                if (part.getStart() < start) {
-                    styleAligningValid(AligningDefault.get(part.getValue()), part.getStart(), start);
-                }
-
-                if (part.getEnd() > end) {
-                    styleAligningValid(AligningDefault.get(part.getValue()), end, part.getEnd());
-                }
-            }
-        }
+        aligningFormat.remove(getEditableText(), start, end);
     }
 
     protected boolean containAligning(int start, int end) {
-        if (start > end) {
-            return false;
-        }
-
-        if (start == end) {
-            if (start - 1 < 0 || start + 1 > getEditableText().length()) {
-                return false;
-            } else {
-                ParagraphStyle[] before = getEditableText().getSpans(start - 1, start, ParagraphStyle.class);
-                ParagraphStyle[] after = getEditableText().getSpans(start, start + 1, ParagraphStyle.class);
-                return before.length > 0 && after.length > 0;
-            }
-        } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, ParagraphStyle.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1));
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
-        }
+        return containFormat(aligningFormat, start, end);
     }
 
     // UnderlineSpan ===============================================================================
 
     public void underline(boolean valid) {
-        if (valid) {
-            underlineValid(getSelectionStart(), getSelectionEnd());
-        } else {
-            underlineInvalid(getSelectionStart(), getSelectionEnd());
+        if (setTypingStyle(underlineFormat, valid ? new UnderlineSpan() : null)) {
+            return;
         }
-    }
 
-    protected void underlineValid(int start, int end) {
-        if (start >= end) {
-            return;
+        history.beginGroup();
+        try {
+            if (valid) {
+                underlineValid(getSelectionStart(), getSelectionEnd());
+            } else {
+                underlineInvalid(getSelectionStart(), getSelectionEnd());
+            }
+        } finally {
+            history.endGroup();
         }
+    }
 
-        getEditableText().setSpan(new UnderlineSpan(), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    protected void underlineValid(int start, int end) {
+        underlineFormat.apply(getEditableText(), new UnderlineSpan(), start, end);
     }
 
     protected void underlineInvalid(int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        UnderlineSpan[] spans = getEditableText().getSpans(start, end, UnderlineSpan.class);
-        List<KnifePart> list = new ArrayList<>();
-
-        for (UnderlineSpan span : spans) {
-            list.add(new KnifePart(getEditableText().getSpanStart(span), getEditableText().getSpanEnd(span)));
-            getEditableText().removeSpan(span);
-        }
-
-        for (KnifePart part : list) {
-            if (part.isValid()) {
-                if (part.getStart() < start) {
-                    underlineValid(part.getStart(), start);
-                }
-
-                if (part.getEnd() > end) {
-                    underlineValid(end, part.getEnd());
-                }
-            }
-        }
+        underlineFormat.remove(getEditableText(), start, end);
     }
 
     protected boolean containUnderline(int start, int end) {
-        if (start > end) {
-            return false;
-        }
-
-        if (start == end) {
-            if (start - 1 < 0 || start + 1 > getEditableText().length()) {
-                return false;
-            } else {
-                UnderlineSpan[] before = getEditableText().getSpans(start - 1, start, UnderlineSpan.class);
-                UnderlineSpan[] after = getEditableText().getSpans(start, start + 1, UnderlineSpan.class);
-                return before.length > 0 && after.length > 0;
-            }
-        } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, UnderlineSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1).toString());
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
-        }
+        return containFormat(underlineFormat, start, end);
     }
 
     // StrikethroughSpan ===========================================================================
 
     public void strikethrough(boolean valid) {
-        if (valid) {
-            strikethroughValid(getSelectionStart(), getSelectionEnd());
-        } else {
-            strikethroughInvalid(getSelectionStart(), getSelectionEnd());
+        if (setTypingStyle(strikethroughFormat, valid ? new StrikethroughSpan() : null)) {
+            return;
         }
-    }
 
-    protected void strikethroughValid(int start, int end) {
-        if (start >= end) {
-            return;
+        history.beginGroup();
+        try {
+            if (valid) {
+                strikethroughValid(getSelectionStart(), getSelectionEnd());
+            } else {
+                strikethroughInvalid(getSelectionStart(), getSelectionEnd());
+            }
+        } finally {
+            history.endGroup();
         }
+    }
 
-        getEditableText().setSpan(new StrikethroughSpan(), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+    protected void strikethroughValid(int start, int end) {
+        strikethroughFormat.apply(getEditableText(), new StrikethroughSpan(), start, end);
     }
 
     protected void strikethroughInvalid(int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        StrikethroughSpan[] spans = getEditableText().getSpans(start, end, StrikethroughSpan.class);
-        List<KnifePart> list = new ArrayList<>();
-
-        for (StrikethroughSpan span : spans) {
-            list.add(new KnifePart(getEditableText().getSpanStart(span), getEditableText().getSpanEnd(span)));
-            getEditableText().removeSpan(span);
-        }
-
-        for (KnifePart part : list) {
-            if (part.isValid()) {
-                if (part.getStart() < start) {
-                    strikethroughValid(part.getStart(), start);
-                }
-
-                if (part.getEnd() > end) {
-                    strikethroughValid(end, part.getEnd());
-                }
-            }
-        }
-    }
+        strikethroughFormat.remove(getEditableText(), start, end);
+    }
 
     protected boolean containStrikethrough(int start, int end) {
-        if (start > end) {
-            return false;
-        }
-
-        if (start == end) {
-            if (start - 1 < 0 || start + 1 > getEditableText().length()) {
-                return false;
-            } else {
-                StrikethroughSpan[] before = getEditableText().getSpans(start - 1, start, StrikethroughSpan.class);
-                StrikethroughSpan[] after = getEditableText().getSpans(start, start + 1, StrikethroughSpan.class);
-                return before.length > 0 && after.length > 0;
-            }
-        } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, StrikethroughSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1).toString());
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
-        }
+        return containFormat(strikethroughFormat, start, end);
     }
 
     // BulletSpan ==================================================================================
 
     public void bullet(boolean valid) {
-        if (valid) {
-            bulletValid();
-        } else {
-            bulletInvalid();
+        history.beginGroup();
+        try {
+            if (valid) {
+                bulletValid();
+            } else {
+                bulletInvalid();
+            }
+        } finally {
+            history.endGroup();
         }
     }
 
     protected void bulletValid() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
+        int last = lines.getLineForOffset(getSelectionEnd());
 
-        for (int i = 0; i < lines.length; i++) {
+        for (int i = lines.getLineForOffset(getSelectionStart()); i <= last; i++) {
             if (containBullet(i)) {
                 continue;
             }
 
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1; // \n
-            }
-
-            int lineEnd = lineStart + lines[i].length();
+            int lineStart = lines.getLineStart(i);
+            int lineEnd = lines.getLineEnd(i);
             if (lineStart >= lineEnd) {
                 continue;
             }
@@ -768,19 +704,15 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected void bulletInvalid() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
+        int last = lines.getLineForOffset(getSelectionEnd());
 
-        for (int i = 0; i < lines.length; i++) {
+        for (int i = lines.getLineForOffset(getSelectionStart()); i <= last; i++) {
             if (!containBullet(i)) {
                 continue;
             }
 
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1;
-            }
-
-            int lineEnd = lineStart + lines[i].length();
+            int lineStart = lines.getLineStart(i);
+            int lineEnd = lines.getLineEnd(i);
             if (lineStart >= lineEnd) {
                 continue;
             }
@@ -805,30 +737,23 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected boolean containBullet() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
-        List<Integer> list = new ArrayList<>();
-
-        for (int i = 0; i < lines.length; i++) {
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1;
-            }
+        int last = lines.getLineForOffset(getSelectionEnd());
 
-            int lineEnd = lineStart + lines[i].length();
+        for (int i = lines.getLineForOffset(getSelectionStart()); i <= last; i++) {
+            int lineStart = lines.getLineStart(i);
+            int lineEnd = lines.getLineEnd(i);
             if (lineStart >= lineEnd) {
                 continue;
             }
 
             if (lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd) {
-                list.add(i);
+                if (!containBullet(i)) {
+                    return false;
+                }
             } else if (getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd()) {
-                list.add(i);
-            }
-        }
-
-        for (Integer i : list) {
-            if (!containBullet(i)) {
-                return false;
+                if (!containBullet(i)) {
+                    return false;
+                }
             }
         }
 
@@ -836,17 +761,12 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected boolean containBullet(int index) {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
-        if (index < 0 || index >= lines.length) {
+        if (index < 0 || index >= lines.getLineCount()) {
             return false;
         }
 
-        int start = 0;
-        for (int i = 0; i < index; i++) {
-            start = start + lines[i].length() + 1;
-        }
-
-        int end = start + lines[index].length();
+        int start = lines.getLineStart(index);
+        int end = lines.getLineEnd(index);
         if (start >= end) {
             return false;
         }
@@ -858,27 +778,28 @@ public class KnifeText extends EditText implements TextWatcher {
     // QuoteSpan ===================================================================================
 
     public void quote(boolean valid) {
-        if (valid) {
-            quoteValid();
-        } else {
-            quoteInvalid();
+        history.beginGroup();
+        try {
+            if (valid) {
+                quoteValid();
+            } else {
+                quoteInvalid();
+            }
+        } finally {
+            history.endGroup();
         }
     }
 
     protected void quoteValid() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
+        int last = lines.getLineForOffset(getSelectionEnd());
 
-        for (int i = 0; i < lines.length; i++) {
+        for (int i = lines.getLineForOffset(getSelectionStart()); i <= last; i++) {
             if (containQuote(i)) {
                 continue;
             }
 
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1; // \n
-            }
-
-            int lineEnd = lineStart + lines[i].length();
+            int lineStart = lines.getLineStart(i);
+            int lineEnd = lines.getLineEnd(i);
             if (lineStart >= lineEnd) {
                 continue;
             }
@@ -900,19 +821,15 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected void quoteInvalid() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
+        int last = lines.getLineForOffset(getSelectionEnd());
 
-        for (int i = 0; i < lines.length; i++) {
+        for (int i = lines.getLineForOffset(getSelectionStart()); i <= last; i++) {
             if (!containQuote(i)) {
                 continue;
             }
 
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1;
-            }
-
-            int lineEnd = lineStart + lines[i].length();
+            int lineStart = lines.getLineStart(i);
+            int lineEnd = lines.getLineEnd(i);
             if (lineStart >= lineEnd) {
                 continue;
             }
@@ -937,30 +854,23 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected boolean containQuote() {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
-        List<Integer> list = new ArrayList<>();
-
-        for (int i = 0; i < lines.length; i++) {
-            int lineStart = 0;
-            for (int j = 0; j < i; j++) {
-                lineStart = lineStart + lines[j].length() + 1;
-            }
+        int last = lines.getLineForOffset(getSelectionEnd());
 
-            int lineEnd = lineStart + lines[i].length();
+        for (int i = lines.getLineForOffset(getSelectionStart()); i <= last; i++) {
+            int lineStart = lines.getLineStart(i);
+            int lineEnd = lines.getLineEnd(i);
             if (lineStart >= lineEnd) {
                 continue;
             }
 
             if (lineStart <= getSelectionStart() && getSelectionEnd() <= lineEnd) {
-                list.add(i);
+                if (!containQuote(i)) {
+                    return false;
+                }
             } else if (getSelectionStart() <= lineStart && lineEnd <= getSelectionEnd()) {
-                list.add(i);
-            }
-        }
-
-        for (Integer i : list) {
-            if (!containQuote(i)) {
-                return false;
+                if (!containQuote(i)) {
+                    return false;
+                }
             }
         }
 
@@ -968,17 +878,12 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     protected boolean containQuote(int index) {
-        String[] lines = TextUtils.split(getEditableText().toString(), "\n");
-        if (index < 0 || index >= lines.length) {
+        if (index < 0 || index >= lines.getLineCount()) {
             return false;
         }
 
-        int start = 0;
-        for (int i = 0; i < index; i++) {
-            start = start + lines[i].length() + 1;
-        }
-
-        int end = start + lines[index].length();
+        int start = lines.getLineStart(index);
+        int end = lines.getLineEnd(index);
         if (start >= end) {
             return false;
         }
@@ -995,75 +900,42 @@ public class KnifeText extends EditText implements TextWatcher {
 
     // When KnifeText lose focus, use this method
     public void link(String link, int start, int end) {
-        if (link != null && !TextUtils.isEmpty(link.trim())) {
-            linkValid(link, start, end);
-        } else {
-            linkInvalid(start, end);
+        history.beginGroup();
+        try {
+            if (link != null && !TextUtils.isEmpty(link.trim())) {
+                linkValid(link, start, end);
+            } else {
+                linkInvalid(start, end);
+            }
+        } finally {
+            history.endGroup();
         }
     }
 
     protected void linkValid(String link, int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        linkInvalid(start, end);
-        getEditableText().setSpan(new KnifeURLSpan(link, linkColor, linkUnderline), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+        linkFormat.apply(getEditableText(), new KnifeURLSpan(link, linkColor, linkUnderline), start, end);
     }
 
     // Remove all span in selection, not like the boldInvalid()
     protected void linkInvalid(int start, int end) {
-        if (start >= end) {
-            return;
-        }
-
-        URLSpan[] spans = getEditableText().getSpans(start, end, URLSpan.class);
-        for (URLSpan span : spans) {
-            getEditableText().removeSpan(span);
-        }
+        linkFormat.remove(getEditableText(), start, end);
     }
 
     protected boolean containLink(int start, int end) {
-        if (start > end) {
-            return false;
-        }
-
-        if (start == end) {
-            if (start - 1 < 0 || start + 1 > getEditableText().length()) {
-                return false;
-            } else {
-                URLSpan[] before = getEditableText().getSpans(start - 1, start, URLSpan.class);
-                URLSpan[] after = getEditableText().getSpans(start, start + 1, URLSpan.class);
-                return before.length > 0 && after.length > 0;
-            }
-        } else {
-            StringBuilder builder = new StringBuilder();
-
-            for (int i = start; i < end; i++) {
-                if (getEditableText().getSpans(i, i + 1, URLSpan.class).length > 0) {
-                    builder.append(getEditableText().subSequence(i, i + 1).toString());
-                }
-            }
-
-            return getEditableText().subSequence(start, end).toString().equals(builder.toString());
-        }
+        return containFormat(linkFormat, start, end);
     }
 
 
     // Image ===============================================================================
 
+    // The image is decoded straight to maxWidth wide, see fixedWidth()
     public void image(final String path, final int maxWidth) {
-        //noinspection deprecation
-        glideRequests.asBitmap()
-                .load(new File(path))
-                .centerCrop()
-                .error(R.drawable.fill_img)
-                .placeholder(R.drawable.fill_img)
-                .into(new SimpleTarget<Bitmap>() {
+        fixedWidth(glideRequests.asBitmap().load(new File(path)), maxWidth)
+                .into(new ImageTarget(new UrlDrawable()) {
                     @Override
-                    public void onResourceReady(Bitmap resource, Transition<? super Bitmap> transition) {
-                        Bitmap bitmap = BitmapUtil.zoomBitmapToFixWidth(resource, maxWidth);
-                        image(path, bitmap);
+                    public void onResourceReady(@NonNull Bitmap resource, Transition<? super Bitmap> transition) {
+                        show(resource, fixedWidth(resource, maxWidth));
+                        image(new ImageCustomSpan(drawable, path, MediaImageType.FILE));
                     }
                 });
     }
@@ -1074,27 +946,18 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     public void image(String path, Bitmap pic) {
-        SpannableString ss = new SpannableString(" \n");
-        ImageCustomSpan span = new ImageCustomSpan(getContext(), pic, path, MediaImageType.FILE);
-        ss.setSpan(span, 0, 1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        int start = getSelectionStart();
-        getEditableText().insert(start, ss);
+        image(new ImageCustomSpan(getContext(), pic, path, MediaImageType.FILE));
     }
 
     //image -> Uri
 
     public void image(final Uri uri, final int maxWidth) {
-        //noinspection deprecation
-        glideRequests.asBitmap()
-                .load(uri)
-                .centerCrop()
-                .error(R.drawable.fill_img)
-                .placeholder(R.drawable.fill_img)
-                .into(new SimpleTarget<Bitmap>() {
+        fixedWidth(glideRequests.asBitmap().load(uri), maxWidth)
+                .into(new ImageTarget(new UrlDrawable()) {
                     @Override
                     public void onResourceReady(@NonNull Bitmap resource, Transition<? super Bitmap> transition) {
-                        Bitmap bitmap = BitmapUtil.zoomBitmapToFixWidth(resource, maxWidth);
-                        image(uri, bitmap);
+                        show(resource, fixedWidth(resource, maxWidth));
+                        image(new ImageCustomSpan(drawable, uri, MediaImageType.URI));
                     }
                 });
     }
@@ -1105,66 +968,204 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     public void image(Uri uri, Bitmap pic) {
+        image(new ImageCustomSpan(getContext(), pic, uri, MediaImageType.URI));
+    }
+
+    private void image(ImageSpan span) {
         SpannableString ss = new SpannableString(" \n");
-        ImageCustomSpan span = new ImageCustomSpan(getContext(), pic, uri, MediaImageType.URI);
         ss.setSpan(span, 0, 1, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
         int start = getSelectionStart();
         getEditableText().insert(start, ss);
     }
 
+    // Samples the image down to maxWidth wide while decoding, the height follows the aspect
+    // ratio and nothing is cropped. Only the bitmap shown is ever allocated, not the full size one
+    // and a scaled copy of it.
+    private GlideRequest<Bitmap> fixedWidth(GlideRequest<Bitmap> request, int maxWidth) {
+        if (maxWidth > 0) {
+            request = request.override(maxWidth, Target.SIZE_ORIGINAL)
+                    .downsample(DownsampleStrategy.FIT_CENTER)
+                    .dontTransform();
+        }
+
+        return request.error(R.drawable.fill_img).placeholder(R.drawable.fill_img);
+    }
+
+    // Bounds drawing the bitmap maxWidth wide. One that came out narrower, a small image or a
+    // sampled decode on older versions, is scaled by its bounds instead of into another bitmap.
+    private static Rect fixedWidth(Bitmap bitmap, int maxWidth) {
+        int width = maxWidth > 0 ? maxWidth : bitmap.getWidth();
+        return new Rect(0, 0, width, bitmap.getHeight() * width / bitmap.getWidth());
+    }
+
+    // Glide puts the bitmap back in its pool once the request is cleared, when the view's
+    // lifecycle ends. The span is then handed the placeholder, or nothing, instead of going on
+    // drawing a bitmap that may be recycled or reused. It keeps its bounds, so the text does not
+    // move.
+    private abstract class ImageTarget extends CustomTarget<Bitmap> {
+        final UrlDrawable drawable;
+
+        ImageTarget(UrlDrawable drawable) {
+            this.drawable = drawable;
+        }
+
+        void show(Bitmap bitmap, Rect bounds) {
+            Drawable shown = new BitmapDrawable(getResources(), bitmap);
+            shown.setBounds(bounds);
+            drawable.setBounds(bounds);
+            drawable.setDrawable(shown);
+        }
+
+        @Override
+        public void onLoadCleared(@Nullable Drawable placeholder) {
+            if (placeholder != null) {
+                placeholder.setBounds(drawable.getBounds());
+            }
+
+            drawable.setDrawable(placeholder);
+            invalidate();
+        }
+    }
+
+
+    // Transaction =================================================================================
+
+    // Formatting applied together, see edit()
+    public interface Transaction {
+        void run(KnifeText knife);
+    }
+
+    // Runs the formatting calls as one batch edit, TextView redraws, checks its size and tells the
+    // input method once at the end instead of after every span. They are undone as one step.
+    // Transactions nest, the outermost one ends the batch.
+    public void edit(Transaction transaction) {
+        beginBatchEdit();
+        history.beginGroup();
+        try {
+            transaction.run(this);
+        } finally {
+            history.endGroup();
+            endBatchEdit();
+        }
+    }
+
+
+    // Typing style ================================================================================
+
+    // True if nothing is selected and the format is kept for the text typed at the cursor instead,
+    // so the typed text gets one span rather than one per key
+    private boolean setTypingStyle(FormatHandler<?> format, Object span) {
+        int start = getSelectionStart();
+        if (start < 0 || start != getSelectionEnd()) {
+            return false;
+        }
+
+        if (typingAt != start) {
+            clearTypingStyle();
+            typingAt = start;
+        }
+
+        typingStyle.put(format, span);
+        typingFrom.put(format, start);
+        notifyFormats();
+        return true;
+    }
+
+    private void clearTypingStyle() {
+        typingStyle.clear();
+        typingFrom.clear();
+        typingAt = -1;
+    }
+
+    // Formats the text typed at the cursor, including composing text and corrections replacing the
+    // text before it. Edits anywhere else drop the typing style. An IME replacing a whole composing
+    // word keeps the part before the toggle and the part after the cursor as they were, only what
+    // was typed since the toggle gets the style.
+    private void applyTypingStyle(int start, int before, int count) {
+        if (typingStyle.isEmpty()) {
+            return;
+        }
+
+        if (typingAt < start || typingAt > start + before) {
+            clearTypingStyle();
+            return;
+        }
+
+        int end = start + count - (start + before - typingAt);
+        typingAt = end;
+        for (Map.Entry<FormatHandler<?>, Object> entry : typingStyle.entrySet()) {
+            int from = start + Math.min(count, Math.max(0, typingFrom.get(entry.getKey()) - start));
+            typingFrom.put(entry.getKey(), from);
+            if (from >= end) {
+                continue;
+            }
+
+            if (entry.getValue() != null) {
+                extend(entry.getKey(), entry.getValue(), from, end);
+            } else {
+                entry.getKey().remove(getEditableText(), from, end);
+            }
+        }
+    }
+
+    private <T> void extend(FormatHandler<T> handler, Object span, int start, int end) {
+        handler.extend(getEditableText(), handler.getType().cast(span), start, end);
+    }
 
     // Redo/Undo ===================================================================================
 
     @Override
     public void beforeTextChanged(CharSequence text, int start, int count, int after) {
-        if (!historyEnable || historyWorking) {
+        if (!isRecordingHistory()) {
             return;
         }
 
-        inputBefore = new SpannableStringBuilder(text);
+        history.beforeTextChanged(text, start, count);
     }
 
     @Override
     public void onTextChanged(CharSequence text, int start, int before, int count) {
-        // DO NOTHING HERE
-    }
+        // Before the history copies the inserted text, so the typing style is part of the edit
+        if (!historyWorking) {
+            applyTypingStyle(start, before, count);
+        }
 
-    @Override
-    public void afterTextChanged(Editable text) {
-        if (!historyEnable || historyWorking) {
+        if (!isRecordingHistory()) {
             return;
         }
 
-        inputLast = new SpannableStringBuilder(text);
-        if (text != null && text.toString().equals(inputBefore.toString())) {
+        history.onTextChanged(text, start, count);
+    }
+
+    @Override
+    public void afterTextChanged(Editable text) {
+        if (!isRecordingHistory()) {
             return;
         }
 
-        if (historyList.size() >= historySize) {
-            historyList.remove(0);
-        }
+        history.afterTextChanged();
+    }
 
-        historyList.add(inputBefore);
-        historyCursor = historyList.size();
+    // Nothing is recorded while a document is appended, see fromHtmlProgressive()
+    private boolean isRecordingHistory() {
+        return historyEnable && !historyWorking && progressiveLoader == null;
     }
 
+    // The edit is applied to the Editable in place, inside one batch edit, and the cursor goes
+    // back to where it happened
     public void redo() {
         if (!redoValid()) {
             return;
         }
 
         historyWorking = true;
-
-        if (historyCursor >= historyList.size() - 1) {
-            historyCursor = historyList.size();
-            setText(inputLast);
-        } else {
-            historyCursor++;
-            setText(historyList.get(historyCursor));
+        beginBatchEdit();
+        try {
+            restoreSelection(history.redo(getEditableText()));
+        } finally {
+            endBatchEdit();
+            historyWorking = false;
         }
-
-        setSelection(getEditableText().length());
-        historyWorking = false;
     }
 
     public void undo() {
@@ -1173,38 +1174,58 @@ public class KnifeText extends EditText implements TextWatcher {
         }
 
         historyWorking = true;
+        beginBatchEdit();
+        try {
+            restoreSelection(history.undo(getEditableText()));
+        } finally {
+            endBatchEdit();
+            historyWorking = false;
+        }
+    }
 
-        historyCursor--;
-        setText(historyList.get(historyCursor));
-        setSelection(getEditableText().length());
-
-        historyWorking = false;
+    // Formatting steps leave the selection on the formatted text
+    private void restoreSelection(int selection) {
+        if (selection >= 0) {
+            setSelection(Math.min(selection, getEditableText().length()));
+        }
     }
 
     public boolean redoValid() {
-        if (!historyEnable || historySize <= 0 || historyList.size() <= 0 || historyWorking) {
+        if (!historyEnable || historySize <= 0 || historyWorking || isLoading()) {
             return false;
         }
 
-        return historyCursor < historyList.size() - 1 || historyCursor >= historyList.size() - 1 && inputLast != null;
+        return history.canRedo();
     }
 
     public boolean undoValid() {
-        if (!historyEnable || historySize <= 0 || historyWorking) {
+        if (!historyEnable || historySize <= 0 || historyWorking || isLoading()) {
             return false;
         }
 
-        if (historyList.size() <= 0 || historyCursor <= 0) {
-            return false;
+        return history.canUndo();
+    }
+
+    public void clearHistory() {
+        if (history != null) {
+            history.clear();
         }
+    }
 
-        return true;
+    // Saves the undo history to a file, so it outlives the process. Restore it once the same text
+    // is back in the view.
+    public void saveHistory(File file) throws IOException {
+        history.save(file, getEditableText());
     }
 
-    public void clearHistory() {
-        if (historyList != null) {
-            historyList.clear();
+    // Returns false if the history was saved for another text. The steps stay in the file until
+    // undo or redo reach them, so keep it until the history is cleared or saved again.
+    public boolean restoreHistory(File file) throws IOException {
+        if (!historyEnable) {
+            return false;
         }
+
+        return history.restore(file, getEditableText(), knifeSpans(new GlideImageGetter(this, glideRequests)));
     }
 
     // Helper ======================================================================================
@@ -1232,8 +1253,338 @@ public class KnifeText extends EditText implements TextWatcher {
             case TEXT_ALIGN:
                 return containAligning(getSelectionStart(), getSelectionEnd());
             default:
+                FormatHandler<?> custom = customFormats.get(format);
+                return custom != null && containFormat(custom, getSelectionStart(), getSelectionEnd());
+        }
+    }
+
+    // A cursor is in the format when the chars on both sides of it are, or when the format was
+    // toggled on for typing there
+    private boolean containFormat(FormatHandler<?> format, int start, int end) {
+        if (start > end) {
+            return false;
+        }
+
+        if (start == end && start == typingAt && typingStyle.containsKey(format)) {
+            return typingStyle.get(format) != null;
+        }
+
+        if (start == end) {
+            if (start - 1 < 0 || start + 1 > getEditableText().length()) {
                 return false;
+            } else {
+                return formats.covers(getEditableText(), format, start - 1, start + 1);
+            }
+        } else {
+            return formats.covers(getEditableText(), format, start, end);
+        }
+    }
+
+    // Custom formats go through the same apply, remove and query paths as the built in ones,
+    // contains() and getActiveFormats() answer for them too
+    public void registerFormat(int format, FormatHandler<?> handler) {
+        for (int builtIn : FORMATS) {
+            if (format == builtIn) {
+                throw new IllegalArgumentException("format must not be a built in format");
+            }
         }
+
+        customFormats.put(format, handler);
+    }
+
+    // Sets the span of a registered format over the selection
+    public void format(int format, Object span) {
+        FormatHandler<?> handler = customFormats.get(format);
+        if (handler == null) {
+            throw new IllegalArgumentException("format must be registered");
+        }
+
+        if (setTypingStyle(handler, copy(handler, span))) {
+            return;
+        }
+
+        history.beginGroup();
+        try {
+            apply(handler, span, getSelectionStart(), getSelectionEnd());
+        } finally {
+            history.endGroup();
+        }
+    }
+
+    // Removes a registered format from the selection
+    public void unformat(int format) {
+        FormatHandler<?> handler = customFormats.get(format);
+        if (handler == null) {
+            throw new IllegalArgumentException("format must be registered");
+        }
+
+        if (setTypingStyle(handler, null)) {
+            return;
+        }
+
+        history.beginGroup();
+        try {
+            handler.remove(getEditableText(), getSelectionStart(), getSelectionEnd());
+        } finally {
+            history.endGroup();
+        }
+    }
+
+    // Applies a character format to every range [starts[i], ends[i]) in one batch edit and one
+    // undo step, overlapping and touching ranges get one span. The value is the link for
+    // FORMAT_LINK, the color int or hex string for TEXT_COLOR, the HeadingTagDefault or
+    // AligningDefault for HEADING_TAG and TEXT_ALIGN, and a span to copy for a registered format.
+    public void applyFormat(int format, int[] starts, int[] ends, Object value) {
+        FormatHandler<?> handler = characterFormat(format);
+        long[] ranges = ranges(starts, ends);
+
+        beginBatchEdit();
+        history.beginGroup();
+        try {
+            for (long range : ranges) {
+                if (range == 0) {
+                    continue;
+                }
+
+                apply(handler, formatSpan(format, handler, value), (int) (range >>> 32), (int) range);
+            }
+        } finally {
+            history.endGroup();
+            endBatchEdit();
+        }
+    }
+
+    public void removeFormat(int format, int[] starts, int[] ends) {
+        FormatHandler<?> handler = characterFormat(format);
+        long[] ranges = ranges(starts, ends);
+
+        beginBatchEdit();
+        history.beginGroup();
+        try {
+            for (long range : ranges) {
+                if (range == 0) {
+                    continue;
+                }
+
+                handler.remove(getEditableText(), (int) (range >>> 32), (int) range);
+            }
+        } finally {
+            history.endGroup();
+            endBatchEdit();
+        }
+    }
+
+    // Bullets and quotes go by lines, they have no handler
+    private FormatHandler<?> characterFormat(int format) {
+        switch (format) {
+            case FORMAT_BOLD:
+                return styleFormats[Typeface.BOLD];
+            case FORMAT_ITALIC:
+                return styleFormats[Typeface.ITALIC];
+            case FORMAT_UNDERLINED:
+                return underlineFormat;
+            case FORMAT_STRIKETHROUGH:
+                return strikethroughFormat;
+            case FORMAT_LINK:
+                return linkFormat;
+            case TEXT_COLOR:
+                return textColorFormat;
+            case HEADING_TAG:
+                return headingTagFormat;
+            case TEXT_ALIGN:
+                return aligningFormat;
+            default:
+                FormatHandler<?> custom = customFormats.get(format);
+                if (custom == null) {
+                    throw new IllegalArgumentException("format must be a character format");
+                }
+
+                return custom;
+        }
+    }
+
+    private Object formatSpan(int format, FormatHandler<?> handler, Object value) {
+        switch (format) {
+            case FORMAT_BOLD:
+                return new StyleSpan(Typeface.BOLD);
+            case FORMAT_ITALIC:
+                return new StyleSpan(Typeface.ITALIC);
+            case FORMAT_UNDERLINED:
+                return new UnderlineSpan();
+            case FORMAT_STRIKETHROUGH:
+                return new StrikethroughSpan();
+            case FORMAT_LINK:
+                return new KnifeURLSpan((String) value, linkColor, linkUnderline);
+            case TEXT_COLOR:
+                return new ForegroundColorSpan(value instanceof String ? Color.parseColor((String) value) : (Integer) value);
+            case HEADING_TAG:
+                return new RelativeSizeSpan(((HeadingTagDefault) value).getValue());
+            case TEXT_ALIGN:
+                return new AlignmentSpan(((AligningDefault) value).getValue());
+            default:
+                return copy(handler, value);
+        }
+    }
+
+    private static <T> T copy(FormatHandler<T> handler, Object span) {
+        if (!handler.getType().isInstance(span)) {
+            throw new IllegalArgumentException("value must be a " + handler.getType().getName());
+        }
+
+        return handler.copy(handler.getType().cast(span));
+    }
+
+    // Sorted, merged where they overlap or touch and clipped to the text, as start << 32 | end.
+    // Merged away and empty ranges are left 0.
+    private long[] ranges(int[] starts, int[] ends) {
+        if (starts.length != ends.length) {
+            throw new IllegalArgumentException("starts and ends must have the same length");
+        }
+
+        int length = getEditableText().length();
+        long[] ranges = new long[starts.length];
+        for (int i = 0; i < starts.length; i++) {
+            int start = Math.max(0, Math.min(starts[i], length));
+            int end = Math.max(0, Math.min(ends[i], length));
+            ranges[i] = start < end ? (long) start << 32 | end : 0;
+        }
+
+        Arrays.sort(ranges);
+
+        int last = -1;
+        for (int i = 0; i < ranges.length; i++) {
+            if (ranges[i] == 0) {
+                continue;
+            }
+
+            if (last >= 0 && (int) (ranges[i] >>> 32) <= (int) ranges[last]) {
+                long end = Math.max((int) ranges[last], (int) ranges[i]);
+                ranges[last] = ranges[last] & 0xffffffff00000000L | end;
+                ranges[i] = 0;
+            } else {
+                last = i;
+            }
+        }
+
+        return ranges;
+    }
+
+    private <T> void apply(FormatHandler<T> handler, Object span, int start, int end) {
+        if (!handler.getType().isInstance(span)) {
+            throw new IllegalArgumentException("span must be a " + handler.getType().getName());
+        }
+
+        handler.apply(getEditableText(), handler.getType().cast(span), start, end);
+    }
+
+    // Bit 1 << format is set for every format contains() is true for, registered formats from 0 to
+    // 31 included, e.g.
+    // (getActiveFormats() & 1 << FORMAT_BOLD) != 0
+    public int getActiveFormats() {
+        // One getSpans() brings the runs of every character format up to date, each contains()
+        // below is then a binary search
+        List<FormatHandler<?>> handlers = new ArrayList<>(FORMATS.length + customFormats.size());
+        for (int format : FORMATS) {
+            if (format != FORMAT_BULLET && format != FORMAT_QUOTE) {
+                handlers.add(characterFormat(format));
+            }
+        }
+
+        for (int i = 0; i < customFormats.size(); i++) {
+            handlers.add(customFormats.valueAt(i));
+        }
+
+        this.formats.update(getEditableText(), handlers);
+
+        int formats = 0;
+        for (int format : FORMATS) {
+            if (contains(format)) {
+                formats |= 1 << format;
+            }
+        }
+
+        for (int i = 0; i < customFormats.size(); i++) {
+            int format = customFormats.keyAt(i);
+            if (format >= 0 && format < 32 && contains(format)) {
+                formats |= 1 << format;
+            }
+        }
+
+        return formats;
+    }
+
+    // Called back with getActiveFormats() when the selection moves, at most once per frame
+    public void setFormatListener(FormatListener listener) {
+        formatListener = listener;
+    }
+
+    @Override
+    protected void onSelectionChanged(int selStart, int selEnd) {
+        super.onSelectionChanged(selStart, selEnd);
+
+        // The typing style stays with the cursor following the typed text, called from the
+        // TextView constructor before init()
+        if (typingStyle != null && (selStart != selEnd || selStart != typingAt)) {
+            clearTypingStyle();
+        }
+
+        notifyFormats();
+    }
+
+    // Posts getActiveFormats() to the listener, once per frame
+    private void notifyFormats() {
+        // Already posted for this frame
+        if (formatListener == null || formatNotifier != null) {
+            return;
+        }
+
+        formatNotifier = new Runnable() {
+            @Override
+            public void run() {
+                formatNotifier = null;
+                if (formatListener != null) {
+                    formatListener.onFormats(getActiveFormats());
+                }
+            }
+        };
+
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.JELLY_BEAN) {
+            postOnAnimation(formatNotifier);
+        } else {
+            post(formatNotifier);
+        }
+    }
+
+    // Merges the overlapping and touching spans of equal formatting, as older HTML or older
+    // versions of Knife left them. Formatting keeps its own spans merged, see FormatHandler.
+    public void compactSpans() {
+        beginBatchEdit();
+        history.beginGroup();
+        try {
+            for (FormatHandler<?> format : styleFormats) {
+                compact(format);
+            }
+
+            compact(textColorFormat);
+            compact(headingTagFormat);
+            compact(aligningFormat);
+            compact(underlineFormat);
+            compact(strikethroughFormat);
+
+            // Links are left as they are, two touching links to the same URL stay two links
+
+            for (int i = 0; i < customFormats.size(); i++) {
+                compact(customFormats.valueAt(i));
+            }
+        } finally {
+            history.endGroup();
+            endBatchEdit();
+        }
+    }
+
+    private <T> void compact(FormatHandler<T> format) {
+        Editable text = getEditableText();
+        format.coalesce(text, text.getSpans(0, text.length(), format.getType()));
     }
 
     public void clearFormats() {
@@ -1254,14 +1605,275 @@ public class KnifeText extends EditText implements TextWatcher {
     }
 
     public void fromHtml(String source) {
-        SpannableStringBuilder builder = new SpannableStringBuilder();
-        builder.append(KnifeParser.fromHtml(source, new GlideImageGetter(this, glideRequests)));
-        switchToKnifeStyle(builder, 0, builder.length());
-        setText(builder);
+        setDocument(KnifeParser.parseHtml(source));
+    }
+
+    public void fromHtml(Reader source) throws IOException {
+        setDocument(KnifeParser.parseHtml(source));
+    }
+
+    public void fromHtml(InputStream source) throws IOException {
+        setDocument(KnifeParser.parseHtml(source));
+    }
+
+    public void fromHtml(FileChannel source) throws IOException {
+        setDocument(KnifeParser.parseHtml(source));
+    }
+
+    // The HTML is parsed on the executor and the document set on the UI thread, unless the text
+    // was set again in between. If parsing fails the text is left as it is, get() on the returned
+    // future throws the failure.
+    public Future<KnifeDocument> fromHtmlAsync(Executor executor, final String source) {
+        final FutureTask<KnifeDocument> future = new FutureTask<>(new Callable<KnifeDocument>() {
+            @Override
+            public KnifeDocument call() {
+                return KnifeParser.parseHtml(source);
+            }
+        });
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.run();
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (future.isCancelled() || documentLoader != future) {
+                            return;
+                        }
+
+                        documentLoader = null;
+                        try {
+                            setDocument(future.get());
+                        } catch (InterruptedException e) {
+                            // Already done, get() never waits
+                            throw new IllegalStateException(e);
+                        } catch (ExecutionException e) {
+                            // Left to the caller holding the future
+                        }
+                    }
+                });
+            }
+        });
+
+        // Replaces any document still being parsed
+        if (documentLoader != null) {
+            documentLoader.cancel(false);
+        }
+
+        documentLoader = future;
+        return future;
+    }
+
+    // Cheap enough for the UI thread, the document only has to be turned into spans. Everything
+    // lands in one batch edit, so the input method hears about it once. The text is copied once,
+    // into the Editable the view keeps.
+    public void setDocument(KnifeDocument document) {
+        beginBatchEdit();
+        try {
+            adoptText(document.toSpannable(knifeSpans(new GlideImageGetter(this, glideRequests))));
+        } finally {
+            endBatchEdit();
+        }
+    }
+
+    // setText() without copying the text into yet another Editable
+    private void adoptText(SpannableStringBuilder text) {
+        adoptedText = text;
+        try {
+            setText(text);
+        } finally {
+            adoptedText = null;
+        }
+    }
+
+    // Sets the first screen of the document right away and appends the rest a chunk per frame,
+    // so the time to first paint does not depend on the document size. The document starts a new
+    // history: undo and redo are off and nothing is recorded until the last chunk is in.
+    public void fromHtmlProgressive(String source) {
+        final KnifeHtmlParser parser = new KnifeHtmlParser(new StringReader(source));
+        final KnifeDocument.SpanFactory spans = knifeSpans(new GlideImageGetter(this, glideRequests));
+
+        adoptText(parseChunk(parser, firstScreenLength()).toSpannable(spans));
+        clearHistory();
+        history.attach(null);
+
+        progressiveLoader = new Runnable() {
+            @Override
+            public void run() {
+                KnifeDocument chunk = parseChunk(parser, PROGRESSIVE_CHUNK_LENGTH);
+                if (chunk == null) {
+                    progressiveLoader = null;
+                    if (historyEnable) {
+                        history.attach(getEditableText());
+                    }
+
+                    return;
+                }
+
+                getEditableText().append(chunk.toSpannable(spans));
+                post(this);
+            }
+        };
+
+        post(progressiveLoader);
+    }
+
+    public boolean isLoading() {
+        return progressiveLoader != null || documentLoader != null;
+    }
+
+    private static KnifeDocument parseChunk(KnifeHtmlParser parser, int length) {
+        try {
+            return parser.parse(length);
+        } catch (IOException e) {
+            // StringReader never throws
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // Rough count of the characters filling the view, the view may not be laid out yet
+    private int firstScreenLength() {
+        DisplayMetrics metrics = getResources().getDisplayMetrics();
+        int width = getWidth() > 0 ? getWidth() : metrics.widthPixels;
+        int height = getHeight() > 0 ? getHeight() : metrics.heightPixels;
+        int lines = height / Math.max(getLineHeight(), 1) + 1;
+        int columns = (int) (width / Math.max(getTextSize() / 2, 1));
+        return lines * columns;
+    }
+
+    public void fromBinary(InputStream in) throws IOException {
+        setDocument(KnifeBinaryCodec.decode(in));
+    }
+
+    public void toBinary(OutputStream out) throws IOException {
+        KnifeBinaryCodec.encode(KnifeDocument.of(getEditableText()), out);
     }
 
     public String toHtml() {
-        return KnifeParser.toHtml(getEditableText());
+        return htmlCache.toHtml(getEditableText());
+    }
+
+    public void toHtml(Appendable out) throws IOException {
+        htmlCache.toHtml(getEditableText(), out);
+    }
+
+    public Future<String> toHtmlAsync(Executor executor) {
+        return toHtmlAsync(executor, null);
+    }
+
+    // Only the snapshot is taken here, the HTML is built on the executor and the listener is
+    // called back on the UI thread, with the error if serializing failed
+    public Future<String> toHtmlAsync(Executor executor, final HtmlListener listener) {
+        final KnifeHtmlCache.Task task = htmlCache.snapshot(getEditableText());
+        final FutureTask<String> future = new FutureTask<>(task);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                future.run();
+
+                post(new Runnable() {
+                    @Override
+                    public void run() {
+                        if (future.isCancelled()) {
+                            return;
+                        }
+
+                        htmlCache.adopt(task);
+
+                        if (listener == null) {
+                            return;
+                        }
+
+                        String html;
+                        try {
+                            html = future.get();
+                        } catch (InterruptedException e) {
+                            // Already done, get() never waits
+                            throw new IllegalStateException(e);
+                        } catch (ExecutionException e) {
+                            listener.onError(e.getCause());
+                            return;
+                        }
+
+                        listener.onHtml(html);
+                    }
+                });
+            }
+        });
+
+        return future;
+    }
+
+    // Builds the same spans switchToKnifeStyle() leaves behind
+    protected KnifeDocument.SpanFactory knifeSpans(final Html.ImageGetter imageGetter) {
+        return new KnifeSpanFactory(imageGetter) {
+            @Override
+            protected Object link(String url) {
+                return new KnifeURLSpan(url, linkColor, linkUnderline);
+            }
+
+            @Override
+            protected Object bullet() {
+                return new KnifeBulletSpan(bulletColor, bulletRadius, bulletGapWidth);
+            }
+
+            @Override
+            protected Object quote() {
+                return new KnifeQuoteSpan(quoteColor, quoteStripeWidth, quoteGapWidth);
+            }
+        };
+    }
+
+    // Image span undo and redo put back for the one history let go of. It takes the size the image
+    // had right away, so the text does not move when the bitmap comes in.
+    protected ImageSpan knifeImage(String source, MediaImageType mediaImageType, final int width, final int height) {
+        final UrlDrawable drawable = new UrlDrawable();
+        drawable.setBounds(0, 0, Math.max(width, 0), Math.max(height, 0));
+
+        final ImageSpan span;
+        Object model;
+        if (mediaImageType == MediaImageType.FILE) {
+            span = new ImageCustomSpan(drawable, source, mediaImageType);
+            model = new File(source);
+        } else if (mediaImageType != null) {
+            Uri uri = Uri.parse(source);
+            span = new ImageCustomSpan(drawable, uri, mediaImageType);
+            model = mediaImageType == MediaImageType.URI ? uri : source;
+        } else {
+            span = new ImageSpan(drawable, source);
+            model = source;
+        }
+
+        GlideRequest<Bitmap> request = glideRequests.asBitmap().load(model);
+        if (width > 0 && height > 0) {
+            request = request.override(width, height).centerCrop();
+        } else {
+            // Size unknown, decoded to the width of the view as image() does
+            request = fixedWidth(request, getWidth() - getPaddingLeft() - getPaddingRight());
+        }
+
+        request.into(new ImageTarget(drawable) {
+            @Override
+            public void onResourceReady(@NonNull Bitmap resource, Transition<? super Bitmap> transition) {
+                if (width > 0 && height > 0) {
+                    show(resource, new Rect(0, 0, width, height));
+                } else {
+                    show(resource, fixedWidth(resource, getWidth() - getPaddingLeft() - getPaddingRight()));
+                }
+
+                // Setting the span again lays out the lines it is on
+                Editable editable = getEditableText();
+                int start = editable.getSpanStart(span);
+                if (start >= 0) {
+                    editable.setSpan(span, start, editable.getSpanEnd(span), editable.getSpanFlags(span));
+                }
+            }
+        });
+
+        return span;
     }
 
     protected void switchToKnifeStyle(Editable editable, int start, int end) {
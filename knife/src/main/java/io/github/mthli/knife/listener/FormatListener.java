@@ -0,0 +1,6 @@
+package io.github.mthli.knife.listener;
+
+public interface FormatListener {
+
+    void onFormats(int formats);
+}
@@ -0,0 +1,9 @@
+package io.github.mthli.knife.listener;
+
+public interface HtmlListener {
+
+    void onHtml(String html);
+
+    // Serializing failed on the executor
+    void onError(Throwable error);
+}
@@ -2,6 +2,7 @@ package io.github.mthli.knife.spans;
 
 import android.content.Context;
 import android.graphics.Bitmap;
+import android.graphics.drawable.Drawable;
 import android.net.Uri;
 import android.text.style.ImageSpan;
 
@@ -25,6 +26,18 @@ public class ImageCustomSpan extends ImageSpan {
         this.mediaImageType = mediaImageType;
     }
 
+    public ImageCustomSpan(Drawable d, Uri uri, MediaImageType mediaImageType) {
+        super(d);
+        this.uri = uri;
+        this.mediaImageType = mediaImageType;
+    }
+
+    public ImageCustomSpan(Drawable d, String filePath, MediaImageType mediaImageType) {
+        super(d);
+        this.filePath = filePath;
+        this.mediaImageType = mediaImageType;
+    }
+
     @Override
     public String getSource() {
         if (mediaImageType == MediaImageType.FILE) {